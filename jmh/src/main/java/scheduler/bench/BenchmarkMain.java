@@ -0,0 +1,47 @@
+package scheduler.bench;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks once for every thread count, since JMH runs a benchmark at one thread count only,
+ * and writes all results to one JSON file so runs can be compared before a rollout.
+ *
+ * Usage: java -jar benchmarks.jar [--threads 1,8] [--out bench-results.json] [JMH options]
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> threadCounts = Arrays.asList(1, Runtime.getRuntime().availableProcessors());
+        String outFile = "bench-results.json";
+        List<String> jmhArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threadCounts = new ArrayList<>();
+                for (String part : args[++i].split(",")) {
+                    threadCounts.add(Integer.parseInt(part.trim()));
+                }
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                outFile = args[++i];
+            } else {
+                jmhArgs.add(args[i]);
+            }
+        }
+        CommandLineOptions options = new CommandLineOptions(jmhArgs.toArray(new String[0]));
+
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            results.addAll(new Runner(new OptionsBuilder().parent(options).threads(threads).build()).run());
+        }
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, outFile).writeOut(results);
+        System.out.println("Results written to " + outFile);
+    }
+}
@@ -0,0 +1,203 @@
+package scheduler.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.cache.AppointmentViewCache;
+import scheduler.cache.AvailabilityIndex;
+import scheduler.cache.VaccineStockCache;
+import scheduler.db.ConnectionManager;
+import scheduler.model.Patient;
+import scheduler.model.ReservationResult;
+import scheduler.service.CancellationService;
+import scheduler.service.ReservationService;
+import scheduler.storage.ImportKind;
+import scheduler.storage.InMemoryStorageEngine;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+import scheduler.util.Util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hot paths of the scheduler: reserve, search_caregiver_schedule, show_appointments, login_patient and
+ * password hashing, at several data sizes, on either storage engine.
+ *
+ * For every size the engine is seeded with {@code size} caregivers who are free on each day of a
+ * {@value #DAYS}-day window, {@code size / 10} patients and {@code size} appointments spread over them.
+ * storage=memory runs on the in-memory engine. storage=sqlserver runs the SQL of SqlServerStorageEngine against
+ * the database ConnectionManager is set up with, e.g. a local SQL Server with create.sql applied pointed at by
+ * JdbcUrl; that database must be empty, and everything the benchmark writes to it is deleted afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    private static final int DAYS = 30;
+    private static final int BATCH = 1000;
+    private static final String VACCINE = "pfizer";
+    private static final String PASSWORD = "Bench#Passw0rd";
+    private static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+    private static final String[] TABLES = {"Appointments", "Availabilities", "Vaccines", "Patients", "Caregivers"};
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    @Param({"memory"})
+    public String storage;
+
+    private int patients;
+    private byte[] salt;
+    private byte[] hash;
+
+    // the command output of a benchmark thread, thrown away
+    @State(Scope.Thread)
+    public static class User {
+        private final Session session = new Session(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    // the appointment the last reserve booked, cancelled outside the measurement so availability does not run dry
+    @State(Scope.Thread)
+    public static class Booking {
+        private String patient;
+        private ReservationResult result;
+
+        @TearDown(Level.Invocation)
+        public void cancel() throws SQLException {
+            if (result != null && result.isBooked()) {
+                CancellationService.cancel(StorageEngine.Role.PATIENT, patient,
+                        Collections.singletonList(result.getAppointmentId()));
+            }
+            result = null;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void seed() throws SQLException {
+        StorageEngine engine = storage.equals("memory") ? new InMemoryStorageEngine() : StorageEngines.create(storage);
+        if (engine.countUsers(StorageEngine.Role.PATIENT) + engine.countUsers(StorageEngine.Role.CAREGIVER) > 0) {
+            throw new IllegalStateException("The benchmarks need an empty database");
+        }
+        StorageEngines.set(engine);
+
+        // every user shares one password, so seeding does not spend its time hashing
+        salt = Util.generateSalt();
+        hash = Util.generateHash(PASSWORD, salt);
+        patients = Math.max(1, size / 10);
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            rows.add(new Object[]{"cg" + i, salt, hash});
+        }
+        importRows(engine, ImportKind.CAREGIVERS, rows);
+        for (int i = 0; i < patients; i++) {
+            rows.add(new Object[]{"p" + i, salt, hash});
+        }
+        importRows(engine, ImportKind.PATIENTS, rows);
+        for (int day = 0; day < DAYS; day++) {
+            for (int i = 0; i < size; i++) {
+                rows.add(new Object[]{Date.valueOf(FIRST_DAY.plusDays(day)), "cg" + i});
+            }
+        }
+        importRows(engine, ImportKind.AVAILABILITY, rows);
+        // enough doses that no run ever runs out
+        engine.addVaccine(VACCINE, Integer.MAX_VALUE / 2);
+        for (int i = 0; i < size; i++) {
+            engine.reserve("p" + (i % patients), VACCINE, Date.valueOf(FIRST_DAY.plusDays(i % DAYS)), false,
+                    null, null);
+        }
+
+        // what Scheduler.init() loads, read from this trial's engine
+        AvailabilityIndex.getInstance().reload();
+        VaccineStockCache.getInstance().reload();
+        AppointmentViewCache.getInstance().clear();
+    }
+
+    // leaves the database as empty as it was found
+    @TearDown(Level.Trial)
+    public void wipe() throws SQLException {
+        if (storage.equals("memory")) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (Statement statement = con.createStatement()) {
+            for (String table : TABLES) {
+                statement.executeUpdate("DELETE FROM " + table);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void importRows(StorageEngine engine, ImportKind kind, List<Object[]> rows) throws SQLException {
+        for (int from = 0; from < rows.size(); from += BATCH) {
+            engine.importBatch(kind, rows.subList(from, Math.min(from + BATCH, rows.size())));
+        }
+        rows.clear();
+    }
+
+    @Benchmark
+    public ReservationResult reserve(Booking booking) throws SQLException {
+        booking.patient = randomPatient();
+        booking.result = ReservationService.reserve(booking.patient, randomDate(), VACCINE);
+        return booking.result;
+    }
+
+    @Benchmark
+    public boolean search(User user) {
+        return Scheduler.execute(user.session, "search_caregiver_schedule " + randomDate());
+    }
+
+    @Benchmark
+    public boolean show(User user) {
+        // a different patient every time, so show_appointments does not hit one user only
+        user.session.setCurrentPatient(new Patient.PatientBuilder(randomPatient(), salt, hash).build());
+        return Scheduler.execute(user.session, "show_appointments");
+    }
+
+    @Benchmark
+    public boolean login(User user) {
+        user.session.setCurrentPatient(null);
+        return Scheduler.execute(user.session, "login_patient " + randomPatient() + " " + PASSWORD);
+    }
+
+    @Benchmark
+    public byte[] hash() {
+        return Util.generateHash(PASSWORD, salt);
+    }
+
+    private String randomPatient() {
+        return "p" + ThreadLocalRandom.current().nextInt(patients);
+    }
+
+    private static Date randomDate() {
+        return Date.valueOf(FIRST_DAY.plusDays(ThreadLocalRandom.current().nextInt(DAYS)));
+    }
+}
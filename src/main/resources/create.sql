@@ -31,4 +31,14 @@ CREATE TABLE Appointments (
     c_username varchar(255) REFERENCES Caregivers,
     vaccine_name varchar(255) REFERENCES Vaccines,
     PRIMARY KEY (a_id)
-);
\ No newline at end of file
+);
+
+CREATE TABLE IdBlocks (
+    Name varchar(255),
+    NextValue int,
+    PRIMARY KEY (Name)
+);
+
+-- show_appointments seeks by user and id, so it reads only the page it prints
+CREATE INDEX Appointments_Patient ON Appointments (p_username, a_id) INCLUDE (date, c_username, vaccine_name);
+CREATE INDEX Appointments_Caregiver ON Appointments (c_username, a_id) INCLUDE (date, p_username, vaccine_name);
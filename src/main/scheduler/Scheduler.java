@@ -1,46 +1,66 @@
 package scheduler;
 
-import scheduler.db.ConnectionManager;
+import scheduler.cache.AppointmentViewCache;
+import scheduler.cache.AvailabilityIndex;
+import scheduler.cache.UsernameRegistry;
+import scheduler.cache.VaccineStockCache;
+import scheduler.db.QueryTracer;
+import scheduler.metrics.Metrics;
+import scheduler.metrics.Timer;
+import scheduler.model.Appointment;
+import scheduler.model.CaregiverSchedule;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
+import scheduler.model.ReservationResult;
 import scheduler.model.Vaccine;
+import scheduler.model.VaccineStock;
+import scheduler.service.BulkImporter;
+import scheduler.service.CancellationService;
+import scheduler.service.ReservationService;
+import scheduler.service.Waitlist;
+import scheduler.storage.AppointmentPage;
+import scheduler.storage.ImportKind;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+import scheduler.util.HashingService;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.*;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Date;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    // longest range upload_availability_range accepts at once
+    private static final int MAX_AVAILABILITY_RANGE_DAYS = 366;
+    // longest range search_caregiver_schedule shows at once
+    private static final int MAX_SEARCH_RANGE_DAYS = 31;
+    // rows per committed batch for import unless given on the command line
+    private static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
+    // commands timed under their own name; anything else is timed as "invalid"
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList(
+            "create_patient", "create_caregiver", "login_patient", "login_caregiver", "search_caregiver_schedule",
+            "reserve", "reserve_earliest", "upload_availability", "upload_availability_range", "cancel",
+            "cancel_many", "cancel_day", "add_doses", "waitlist", "import", "show_appointments", "logout", "stats",
+            "trace", "quit"));
 
     public static void main(String[] args) {
         // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
-
-        // read input from user
+        printWelcome(System.out);
+
+        init();
+
+        // read input from user; the console is just one session
+        Session session = new Session(System.out, true);
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
             System.out.print("> ");
@@ -50,154 +70,238 @@ public class Scheduler {
             } catch (IOException e) {
                 System.out.println("Please try again!");
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
-            }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            if (!execute(session, response)) {
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static void createPatient(String[] tokens) {
+    // starts the in-memory state shared by every session
+    public static void init() {
+        // keep caregiver availability in memory, reconciled with the database every minute
+        AvailabilityIndex.getInstance().start(60);
+        // same for the vaccine stock, which every search and reservation reads
+        VaccineStockCache.getInstance().start(60);
+        // show_appointments keeps the appointments of recently active users in memory, AppointmentCacheMB at most
+        String cacheMegabytes = System.getenv("AppointmentCacheMB");
+        AppointmentViewCache.getInstance().configure(
+                (cacheMegabytes == null ? 16 : Long.parseLong(cacheMegabytes.trim())) << 20, 60);
+        // registration checks usernames against Bloom filters of the existing ones
+        try {
+            UsernameRegistry.patients().load();
+            UsernameRegistry.caregivers().load();
+        } catch (SQLException e) {
+            System.out.println("Could not load usernames, checking the database instead");
+        }
+        // append the stats to a file every StatsDumpSeconds seconds (0 turns it off)
+        String dumpSeconds = System.getenv("StatsDumpSeconds");
+        String dumpFile = System.getenv("StatsFile");
+        Metrics.getInstance().startDump(dumpSeconds == null ? 300 : Long.parseLong(dumpSeconds.trim()),
+                Paths.get(dumpFile == null ? "scheduler-stats.log" : dumpFile));
+    }
+
+    public static void printWelcome(PrintStream out) {
+        out.println();
+        out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        out.println("*** Please enter one of the following commands ***");
+        out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
+        out.println("> create_caregiver <username> <password>");
+        out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
+        out.println("> login_caregiver <username> <password>");
+        out.println("> search_caregiver_schedule <date> [<end_date>]");  // TODO: implement search_caregiver_schedule (Part 2)
+        out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
+        out.println("> reserve_earliest <vaccine> [from_date]");
+        out.println("> waitlist <date> [<end_date>] <vaccine>");
+        out.println("> upload_availability <date>");
+        out.println("> upload_availability_range <start_date> <end_date> [weekdays, e.g. mon,wed,fri]");
+        out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
+        out.println("> cancel_many <appointment_id,appointment_id,...>");
+        out.println("> cancel_day <date>");
+        out.println("> add_doses <vaccine> <number>");
+        out.println("> import <patients|caregivers|vaccines|availability> <file.csv> [batch_size]");
+        out.println("> show_appointments [--after <appointment_id>] [--limit <n>] [--from <date> --to <date>]");  // TODO: implement show_appointments (Part 2)
+        out.println("> logout");  // TODO: implement logout (Part 2)
+        out.println("> stats [reset]");
+        out.println("> trace [on|off|slow <ms>|roundtrips <number>]");
+        out.println("> quit");
+        out.println();
+    }
+
+    /**
+     * Runs one command line for the session. Returns false when the session should end.
+     */
+    public static boolean execute(Session session, String response) {
+        PrintStream out = session.getOut();
+        if (response == null) {
+            // end of input
+            return false;
+        }
+        // split the user input by spaces
+        String[] tokens = response.split(" ");
+        // check if input exists
+        if (tokens.length == 0) {
+            fail(session, "Please try again!");
+            return true;
+        }
+        // determine which operation to perform, timing it per command
+        String operation = tokens[0];
+        Timer timer = Metrics.getInstance().timer("command." + (COMMANDS.contains(operation) ? operation : "invalid"));
+        long start = timer.start();
+        session.takeFailed();
+        QueryTracer.getInstance().begin(operation);
+        try {
+            return dispatch(session, operation, tokens);
+        } catch (RuntimeException e) {
+            // a bug in one command must not end the session, which on the server would drop the terminal
+            fail(session, "Please try again!");
+            e.printStackTrace();
+            return true;
+        } finally {
+            QueryTracer.getInstance().end();
+            timer.stop(start, !session.takeFailed());
+        }
+    }
+
+    private static boolean dispatch(Session session, String operation, String[] tokens) {
+        PrintStream out = session.getOut();
+        if (operation.equals("create_patient")) {
+            createPatient(session, tokens);
+        } else if (operation.equals("create_caregiver")) {
+            createCaregiver(session, tokens);
+        } else if (operation.equals("login_patient")) {
+            loginPatient(session, tokens);
+        } else if (operation.equals("login_caregiver")) {
+            loginCaregiver(session, tokens);
+        } else if (operation.equals("search_caregiver_schedule")) {
+            searchCaregiverSchedule(session, tokens);
+        } else if (operation.equals("reserve")) {
+            reserve(session, tokens);
+        } else if (operation.equals("reserve_earliest")) {
+            reserveEarliest(session, tokens);
+        } else if (operation.equals("waitlist")) {
+            waitlist(session, tokens);
+        } else if (operation.equals("upload_availability")) {
+            uploadAvailability(session, tokens);
+        } else if (operation.equals("upload_availability_range")) {
+            uploadAvailabilityRange(session, tokens);
+        } else if (operation.equals("cancel")) {
+            cancel(session, tokens);
+        } else if (operation.equals("cancel_many")) {
+            cancelMany(session, tokens);
+        } else if (operation.equals("cancel_day")) {
+            cancelDay(session, tokens);
+        } else if (operation.equals("add_doses")) {
+            addDoses(session, tokens);
+        } else if (operation.equals("import")) {
+            importFile(session, tokens);
+        } else if (operation.equals("show_appointments")) {
+            showAppointments(session, tokens);
+        } else if (operation.equals("logout")) {
+            logout(session, tokens);
+        } else if (operation.equals("stats")) {
+            stats(session, tokens);
+        } else if (operation.equals("trace")) {
+            trace(session, tokens);
+        } else if (operation.equals("quit")) {
+            out.println("Bye!");
+            return false;
+        } else {
+            fail(session, "Invalid operation name!");
+        }
+        return true;
+    }
+
+    private static void createPatient(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // TODO: Part 1
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Create patient failed");
+            fail(session, "Create patient failed");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+            fail(session, "Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash = HashingService.getInstance().hash(password, salt);
         // create the caregiver
         try {
             Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
             // save to caregiver information to our database
             patient.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Create patient failed");
+            fail(session, "Create patient failed");
             e.printStackTrace();
         }
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private static void createCaregiver(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            fail(session, "Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            fail(session, "Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash = HashingService.getInstance().hash(password, salt);
         // create the caregiver
         try {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            fail(session, "Failed to create user.");
             e.printStackTrace();
         }
     }
 
     private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            return UsernameRegistry.caregivers().exists(username);
         } catch (SQLException e) {
             System.out.println("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
 
     private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            return UsernameRegistry.patients().exists(username);
         } catch (SQLException e) {
             System.out.println("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    private static void loginPatient(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // TODO: Part 1
         // login_patient <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in, try again.");
+        if (session.getCurrentCaregiver() != null || session.getCurrentPatient() != null) {
+            fail(session, "User already logged in, try again.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login patient failed.");
+            fail(session, "Login patient failed.");
             return;
         }
         String username = tokens[1];
@@ -207,28 +311,29 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login patient failed.");
+            fail(session, "Login patient failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login patient failed.");
+            fail(session, "Login patient failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentPatient = patient;
+            out.println("Logged in as: " + username);
+            session.setCurrentPatient(patient);
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private static void loginCaregiver(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+        if (session.getCurrentCaregiver() != null || session.getCurrentPatient() != null) {
+            fail(session, "User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            fail(session, "Login failed.");
             return;
         }
         String username = tokens[1];
@@ -238,450 +343,648 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            fail(session, "Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            fail(session, "Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+            out.println("Logged in as: " + username);
+            session.setCurrentCaregiver(caregiver);
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
+    private static void searchCaregiverSchedule(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // TODO: Part 2
-        // search_caregiver_schedule <date>
-        if (currentCaregiver == null && currentPatient == null){
-            System.out.println("Please login first");
+        // search_caregiver_schedule <date> [<end_date>]
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null){
+            fail(session, "Please login first");
             return;
         }
-        if(tokens.length != 2){
-            System.out.println("Please try again");
+        if(tokens.length != 2 && tokens.length != 3){
+            fail(session, "Please try again");
             return;
         }
 
         try{
 
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String dateWhole = tokens[1];
-            Date sqlDate = Date.valueOf(dateWhole);
-
-            String getAvailableDates = "SELECT Time, Username FROM Availabilities WHERE Time = ? ORDER BY Username";
-            String getVaccines = "SELECT Name, Doses FROM Vaccines";
-
-            List<String> usernameResult = new LinkedList<>();
-            List<String[]> vaccinesResult = new LinkedList<>();
-
-            PreparedStatement statement = con.prepareStatement(getAvailableDates);
-            statement.setDate(1, sqlDate);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                String username = resultSet.getString("Username");
-                usernameResult.add(username);
+            Date start = Date.valueOf(tokens[1]);
+            Date end = tokens.length == 3 ? Date.valueOf(tokens[2]) : start;
+            long days = ChronoUnit.DAYS.between(start.toLocalDate(), end.toLocalDate()) + 1;
+            if (days < 1) {
+                fail(session, "Please try again");
+                return;
+            }
+            if (days > MAX_SEARCH_RANGE_DAYS) {
+                fail(session, "Please enter a range of at most " + MAX_SEARCH_RANGE_DAYS + " days!");
+                return;
             }
 
-            PreparedStatement statement2 = con.prepareStatement(getVaccines);
-            ResultSet resultSet2 = statement2.executeQuery();
-            while (resultSet2.next()) {
-                String availableDoses = resultSet2.getInt("Doses") + "";
-                String vaccineName = resultSet2.getString("Name");
-                String[] tempStringArray = new String[2];
-                tempStringArray[0] = vaccineName;
-                tempStringArray[1] = availableDoses;
-                vaccinesResult.add(tempStringArray);
+            // served from memory when both caches are loaded, otherwise one round-trip at most
+            CaregiverSchedule schedule;
+            AvailabilityIndex availabilityIndex = AvailabilityIndex.getInstance();
+            VaccineStockCache stockCache = VaccineStockCache.getInstance();
+            if (availabilityIndex.isReady()) {
+                schedule = new CaregiverSchedule(availabilityIndex.getCaregivers(start, end),
+                        stockCache.isReady() ? stockCache.getStocks() : StorageEngines.get().getVaccineStocks());
+            } else {
+                schedule = StorageEngines.get().getSchedule(start, end);
             }
 
-            for (String username : usernameResult) {
-                System.out.println(username);
+            if (tokens.length == 2) {
+                for (String username : schedule.getCaregivers(start)) {
+                    out.println(username);
+                }
+            } else {
+                // grouped by date, including the dates nobody is free
+                for (LocalDate day = start.toLocalDate(); !day.isAfter(end.toLocalDate()); day = day.plusDays(1)) {
+                    List<String> usernames = schedule.getCaregivers(Date.valueOf(day));
+                    out.println(day + ":" + (usernames.isEmpty() ? " No caregiver is available" : ""));
+                    for (String username : usernames) {
+                        out.println("  " + username);
+                    }
+                }
             }
 
-            for (String[] vaccineInformation : vaccinesResult) {
-                System.out.println(vaccineInformation[0] + " " + vaccineInformation[1]);
+            for (VaccineStock vaccineInformation : schedule.getVaccines()) {
+                out.println(vaccineInformation.getName() + " " + vaccineInformation.getDoses());
             }
 
         }catch (Exception e){
-            System.out.println("Please try again");
+            fail(session, "Please try again");
             return;
         }
 
     }
 
-    private static void reserve(String[] tokens) {
+    private static void reserve(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // TODO: Part 2
         // reserve <date> <vaccine>
-        if (currentCaregiver == null && currentPatient == null){
-            System.out.println("Please login first");
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null){
+            fail(session, "Please login first");
             return;
         }
-        if(currentPatient == null){
-            System.out.println("Please login as a patient");
+        if(session.getCurrentPatient() == null){
+            fail(session, "Please login as a patient");
             return;
         }
         if(tokens.length != 3){
-            System.out.println("Please try again");
+            fail(session, "Please try again");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        try{
+            Date sqlDate = Date.valueOf(tokens[1]);
+            String vaccineName = tokens[2];
+
+            ReservationResult result = ReservationService.reserve(session.getCurrentPatient().getUsername(), sqlDate, vaccineName);
+            if (result.getStatus() == ReservationResult.Status.NO_CAREGIVER) {
+                fail(session, "No caregiver is available");
+                return;
+            }
+            if (result.getStatus() == ReservationResult.Status.NO_DOSES) {
+                fail(session, "Not enough available doses");
+                return;
+            }
+            out.println("Appointment ID " + result.getAppointmentId() + ", Caregiver username " + result.getCaregiverUsername());
 
-        Date sqlDate = Date.valueOf(tokens[1]);
+        }catch (Exception e) {
+            fail(session, "Please try again");
+            return;
+        }
 
-        String findAvailableDates = "SELECT TOP 1 Time, Username FROM Availabilities WHERE Time = ? ORDER BY Username";
+    }
+
+    private static void reserveEarliest(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // reserve_earliest <vaccine> [from_date]
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null){
+            fail(session, "Please login first");
+            return;
+        }
+        if(session.getCurrentPatient() == null){
+            fail(session, "Please login as a patient");
+            return;
+        }
+        if(tokens.length != 2 && tokens.length != 3){
+            fail(session, "Please try again");
+            return;
+        }
 
         try{
-            PreparedStatement statement = con.prepareStatement(findAvailableDates);
-            statement.setDate(1, sqlDate);
-            ResultSet resultSet = statement.executeQuery();
+            String vaccineName = tokens[1];
+            // without a date, book the first free day from today on
+            Date fromDate = tokens.length == 3 ? Date.valueOf(tokens[2]) : Date.valueOf(java.time.LocalDate.now());
 
-            if (!resultSet.next()) {
-                System.out.println("No caregiver is available");
+            ReservationResult result = ReservationService.reserveEarliest(session.getCurrentPatient().getUsername(), fromDate, vaccineName);
+            if (result.getStatus() == ReservationResult.Status.NO_CAREGIVER) {
+                fail(session, "No caregiver is available");
                 return;
             }
+            if (result.getStatus() == ReservationResult.Status.NO_DOSES) {
+                fail(session, "Not enough available doses");
+                return;
+            }
+            out.println("Appointment ID " + result.getAppointmentId() + ", Caregiver username " + result.getCaregiverUsername()
+                    + ", Date " + result.getDate());
 
-            String assignedCaregiver = resultSet.getString("Username");
-            String vaccineName = tokens[2];
+        }catch (Exception e) {
+            fail(session, "Please try again");
+            return;
+        }
+    }
 
-            Vaccine vaccine = (new Vaccine.VaccineGetter(vaccineName)).get();
+    private static void waitlist(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // waitlist <date> [<end_date>] <vaccine>
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null){
+            fail(session, "Please login first");
+            return;
+        }
+        if(session.getCurrentPatient() == null){
+            fail(session, "Please login as a patient");
+            return;
+        }
+        if(tokens.length != 3 && tokens.length != 4){
+            fail(session, "Please try again");
+            return;
+        }
 
-            if(vaccine.getAvailableDoses() == 0){
-                System.out.println("Not enough available doses");
+        try{
+            Date start = Date.valueOf(tokens[1]);
+            Date end = tokens.length == 4 ? Date.valueOf(tokens[2]) : start;
+            String vaccineName = tokens[tokens.length - 1];
+            long days = ChronoUnit.DAYS.between(start.toLocalDate(), end.toLocalDate()) + 1;
+            // nobody can be booked on a date that has passed, so those are not waited on
+            LocalDate today = LocalDate.now();
+            if (days < 1 || days > MAX_SEARCH_RANGE_DAYS || end.toLocalDate().isBefore(today)) {
+                fail(session, "Please try again");
                 return;
             }
-
-            // 疫苗的有效数量-1
-            vaccine.decreaseAvailableDoses(1);
-            // 增加预约数
-            String tempSql = "SELECT MAX(a_id) FROM Appointments";
-            PreparedStatement statement2 = con.prepareStatement(tempSql);
-            ResultSet resultSet2 = statement2.executeQuery();
-            String addAppointment = "INSERT INTO Appointments VALUES (?, ?, ?, ?, ?)";
-            PreparedStatement statement3 = con.prepareStatement(addAppointment);
-            if (!resultSet2.next()) {
-                statement3.setInt(1, 1);
-                statement3.setDate(2, sqlDate);
-                statement3.setString(3, currentPatient.getUsername());
-                statement3.setString(4, assignedCaregiver);
-                statement3.setString(5, vaccine.getVaccineName());
-            }else{
-                int highestRow = resultSet2.getInt(1);
-                statement3.setInt(1, highestRow + 1);
-                statement3.setDate(2, sqlDate);
-                statement3.setString(3, currentPatient.getUsername());
-                statement3.setString(4, assignedCaregiver);
-                statement3.setString(5, vaccine.getVaccineName());
-            }
-            statement3.executeUpdate();
-            // 更新caregiver's availability
-            String dropAvailability = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
-            PreparedStatement statement4 = con.prepareStatement(dropAvailability);
-            statement4.setDate(1, sqlDate);
-            statement4.setString(2, assignedCaregiver);
-            statement4.executeUpdate();
-
-            // 记得添加事务的特征
-            con.commit();
-
-            String getAppointment = "SELECT a_id, date, c_username, vaccine_name FROM Appointments WHERE p_username = ? AND c_username = ? AND date = ?";
-            PreparedStatement statement5 = con.prepareStatement(getAppointment);
-            statement5.setString(1, currentPatient.getUsername());
-            statement5.setString(2, assignedCaregiver);
-            statement5.setDate(3, sqlDate);
-            ResultSet resultSet5 = statement5.executeQuery();
-
-            while (resultSet5.next()) {
-                int appointmentID = resultSet5.getInt("a_id");
-                String caregiverName = resultSet5.getString("c_username");
-                System.out.println("Appointment ID " + appointmentID + ", Caregiver username " + caregiverName);
+            LocalDate first = start.toLocalDate().isBefore(today) ? today : start.toLocalDate();
+            List<Date> dates = new ArrayList<>();
+            for (LocalDate d = first; !d.isAfter(end.toLocalDate()); d = d.plusDays(1)) {
+                dates.add(Date.valueOf(d));
             }
 
+            // the matcher books it as soon as a caregiver and a dose are free; show_appointments shows it then
+            int ahead = Waitlist.getInstance().add(session.getCurrentPatient().getUsername(), dates, vaccineName);
+            out.println("Added to the waitlist, " + ahead + " ahead of you");
         }catch (Exception e) {
-            System.out.println("Please try again");
-            return;
-        }finally {
-            cm.closeConnection();
+            fail(session, "Please try again");
         }
-
     }
 
-    private static void uploadAvailability(String[] tokens) {
+    private static void uploadAvailability(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            fail(session, "Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            fail(session, "Please try again!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            session.getCurrentCaregiver().uploadAvailability(d);
+            out.println("Availability uploaded!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            fail(session, "Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            fail(session, "Error occurred when uploading availability");
             e.printStackTrace();
         }
     }
 
-    private static void cancel(String[] tokens) {
-        // TODO: Extra credit
-        // cancel <appointment_id>
-        if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first!");
+    private static void uploadAvailabilityRange(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // upload_availability_range <start_date> <end_date> [weekdays]
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCurrentCaregiver() == null) {
+            fail(session, "Please login as a caregiver first!");
             return;
         }
+        // check 2: the range needs a start and an end date, the weekdays are optional
+        if (tokens.length != 3 && tokens.length != 4) {
+            fail(session, "Please try again!");
+            return;
+        }
+        List<Date> dates = new ArrayList<>();
+        try {
+            LocalDate start = Date.valueOf(tokens[1]).toLocalDate();
+            LocalDate end = Date.valueOf(tokens[2]).toLocalDate();
+            Set<DayOfWeek> weekdays = tokens.length == 4 ? parseWeekdays(tokens[3]) : EnumSet.allOf(DayOfWeek.class);
+            if (end.isBefore(start) || ChronoUnit.DAYS.between(start, end) >= MAX_AVAILABILITY_RANGE_DAYS) {
+                fail(session, "Please enter a range of at most " + MAX_AVAILABILITY_RANGE_DAYS + " days!");
+                return;
+            }
+            for (LocalDate d = start; !d.isAfter(end); d = d.plusDays(1)) {
+                if (weekdays.contains(d.getDayOfWeek())) {
+                    dates.add(Date.valueOf(d));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            fail(session, "Please enter valid dates and weekdays!");
+            return;
+        }
+        if (dates.isEmpty()) {
+            fail(session, "No dates in the given range");
+            return;
+        }
+        try {
+            int added = session.getCurrentCaregiver().uploadAvailability(dates);
+            out.println("Availability uploaded! " + added + " added, " + (dates.size() - added) + " already uploaded");
+        } catch (SQLException e) {
+            fail(session, "Error occurred when uploading availability");
+            e.printStackTrace();
+        }
+    }
 
-        if (tokens.length != 2) {
-            System.out.println("Failed to cancel appointment; wrong arguments given");
+    // parses a comma separated list of weekdays such as "mon,wed,fri" or "monday,friday"
+    private static Set<DayOfWeek> parseWeekdays(String weekdays) {
+        Set<DayOfWeek> result = EnumSet.noneOf(DayOfWeek.class);
+        for (String day : weekdays.split(",")) {
+            String name = day.trim().toUpperCase();
+            DayOfWeek match = null;
+            for (DayOfWeek candidate : DayOfWeek.values()) {
+                if (name.length() >= 3 && candidate.name().startsWith(name)) {
+                    match = candidate;
+                }
+            }
+            if (match == null) {
+                throw new IllegalArgumentException("Unknown weekday: " + day);
+            }
+            result.add(match);
+        }
+        return result;
+    }
+
+    private static void cancel(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // TODO: Extra credit
+        // cancel <appointment_id>
+        if (session.getCurrentPatient() == null && session.getCurrentCaregiver() == null) {
+            fail(session, "Please login first!");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection conn = cm.createConnection();
-        if (conn == null) {
-            System.out.println("Failed to connect to the database.");
+        if (tokens.length != 2) {
+            fail(session, "Failed to cancel appointment; wrong arguments given");
             return;
         }
 
         String cancelId = tokens[1];
-        boolean validAppointment = false;
 
         try {
-            // 检查预约是否属于当前用户
-            String getAppointmentSQL = "SELECT a_id, date, p_username, c_username, vaccine_name FROM Appointments WHERE a_id = ?";
-            PreparedStatement getAppointmentStmt = conn.prepareStatement(getAppointmentSQL);
-            getAppointmentStmt.setInt(1, Integer.parseInt(cancelId));
-
-            ResultSet rs = getAppointmentStmt.executeQuery();
-            Map<String, Object> appointment = null;
-//            java.sql.Date temp_date = new Date(0);
-
-            if (rs.next()) {
-                appointment = new HashMap<>();
-                appointment.put("a_id", rs.getInt("a_id"));
-                appointment.put("date", rs.getDate("date"));
-//                temp_date = rs.getDate("date");
-                appointment.put("p_username", rs.getString("p_username"));
-                appointment.put("c_username", rs.getString("c_username"));
-                appointment.put("vaccine_name", rs.getString("vaccine_name"));
-            }
-
-            if (appointment == null) {
-                System.out.println("Could not find appointment with id: " + cancelId);
+            // 只能取消属于当前用户的预约; the check, the delete and the restock are one transaction
+            boolean patient = session.getCurrentPatient() != null;
+            StorageEngine.Role role = patient ? StorageEngine.Role.PATIENT : StorageEngine.Role.CAREGIVER;
+            String username = patient ? session.getCurrentPatient().getUsername() : session.getCurrentCaregiver().getUsername();
+            if (CancellationService.cancel(role, username, Collections.singletonList(Integer.parseInt(cancelId))).isEmpty()) {
+                fail(session, "Could not find appointment with id: " + cancelId);
                 return;
             }
+            out.println("Appointment successfully cancelled.");
+        } catch (NumberFormatException e) {
+            fail(session, "Failed to cancel appointment; wrong arguments given");
+        } catch (SQLException e) {
+            fail(session, "Failed to cancel appointment");
+            e.printStackTrace();
+        }
+    }
 
-            // 验证预约是否属于当前用户
-            if (currentPatient != null) {
-                if (appointment.get("p_username").equals(currentPatient.getUsername())) {
-                    validAppointment = true;
-                } else {
-                    System.out.println("Could not find appointment with id: " + cancelId);
-                    return;
-                }
-            } else if (currentCaregiver != null) {
-                if (appointment.get("c_username").equals(currentCaregiver.getUsername())) {
-                    validAppointment = true;
-                } else {
-                    System.out.println("Could not find appointment with id: " + cancelId);
-                    return;
+    private static void cancelMany(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // cancel_many <appointment_id,appointment_id,...>
+        if (session.getCurrentPatient() == null && session.getCurrentCaregiver() == null) {
+            fail(session, "Please login first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            fail(session, "Failed to cancel appointments; wrong arguments given");
+            return;
+        }
+
+        Set<Integer> ids = new LinkedHashSet<>();
+        try {
+            for (String id : tokens[1].split(",")) {
+                if (!id.trim().isEmpty()) {
+                    ids.add(Integer.parseInt(id.trim()));
                 }
             }
+        } catch (NumberFormatException e) {
+            fail(session, "Failed to cancel appointments; wrong arguments given");
+            return;
+        }
+        if (ids.isEmpty() || ids.size() > CancellationService.MAX_BATCH) {
+            fail(session, "Failed to cancel appointments; give 1 to " + CancellationService.MAX_BATCH + " ids");
+            return;
+        }
 
-            // 如果预约有效，则删除并恢复疫苗供应
-            if (validAppointment) {
-                // 删除预约
-                String deleteAppointmentSQL = "DELETE FROM Appointments WHERE a_id = ?";
-                PreparedStatement deleteAppointmentStmt = conn.prepareStatement(deleteAppointmentSQL);
-                deleteAppointmentStmt.setInt(1, Integer.parseInt(cancelId));
-
-                // 增加疫苗库存
-                String vaccineName = (String) appointment.get("vaccine_name");
-                Vaccine vaccine = (new Vaccine.VaccineGetter(vaccineName)).get();
-                vaccine.increaseAvailableDoses(1); // 恢复疫苗供应
-
-                deleteAppointmentStmt.executeUpdate();
-
-//                Date appointmentDate = temp_date;
-//                java.sql.Date appointmentDate = new java.sql.Date(((java.util.Date) appointment.get("date")).getTime());
-                Date appointmentDate = (Date) appointment.get("date");
-                String caregiver = (String) appointment.get("c_username");
-
-                String insertAvailabilitySQL = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
-                PreparedStatement insertAvailabilityStmt = conn.prepareStatement(insertAvailabilitySQL);
-                insertAvailabilityStmt.setDate(1, appointmentDate);
-                insertAvailabilityStmt.setString(2, caregiver);
-                insertAvailabilityStmt.executeUpdate();
+        try {
+            boolean patient = session.getCurrentPatient() != null;
+            StorageEngine.Role role = patient ? StorageEngine.Role.PATIENT : StorageEngine.Role.CAREGIVER;
+            String username = patient ? session.getCurrentPatient().getUsername() : session.getCurrentCaregiver().getUsername();
+            List<Appointment> cancelled = CancellationService.cancel(role, username, ids);
+
+            StringJoiner done = new StringJoiner(",");
+            for (Appointment appointment : cancelled) {
+                ids.remove(appointment.getId());
+                done.add(Integer.toString(appointment.getId()));
+            }
+            out.println("Cancelled " + cancelled.size() + " appointments" + (cancelled.isEmpty() ? "" : ": " + done));
+            if (!ids.isEmpty()) {
+                StringJoiner missing = new StringJoiner(",");
+                for (int id : ids) {
+                    missing.add(Integer.toString(id));
+                }
+                fail(session, "Could not find appointments with id: " + missing);
+            }
+        } catch (SQLException e) {
+            fail(session, "Failed to cancel appointments");
+            e.printStackTrace();
+        }
+    }
 
-                conn.commit();
-                System.out.println("Appointment successfully cancelled.");
+    private static void cancelDay(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // cancel_day <date>
+        if (session.getCurrentCaregiver() == null) {
+            fail(session, "Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            fail(session, "Please try again!");
+            return;
+        }
 
-            } else {
-                System.out.println("Could not find appointment with id: " + cancelId);
+        try {
+            Date date = Date.valueOf(tokens[1]);
+            List<Appointment> cancelled = CancellationService.cancelDay(session.getCurrentCaregiver().getUsername(), date);
+            out.println("Cancelled " + cancelled.size() + " appointments on " + date + ", availability withdrawn");
+            // the patients to let know
+            for (Appointment appointment : cancelled) {
+                out.println(appointment.getId() + " " + appointment.getPatientUsername() + " " + appointment.getVaccineName());
             }
+        } catch (IllegalArgumentException e) {
+            fail(session, "Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Failed to retrieve appointment information");
+            fail(session, "Failed to cancel appointments");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
     }
 
-    private static void addDoses(String[] tokens) {
+    private static void addDoses(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            fail(session, "Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            fail(session, "Please try again!");
             return;
         }
         String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
+        // check 3: the number of doses must be a positive integer
+        int doses;
+        try {
+            doses = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            fail(session, "Please try again!");
+            return;
+        }
+        if (doses <= 0) {
+            fail(session, "Please try again!");
+            return;
+        }
         Vaccine vaccine = null;
         try {
             vaccine = new Vaccine.VaccineGetter(vaccineName).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            fail(session, "Error occurred when adding doses");
             e.printStackTrace();
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
+        // check 4: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
         //          table
         if (vaccine == null) {
             try {
                 vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
                 vaccine.saveToDB();
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                fail(session, "Error occurred when adding doses");
                 e.printStackTrace();
+                return;
             }
         } else {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
             try {
                 vaccine.increaseAvailableDoses(doses);
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                fail(session, "Error occurred when adding doses");
                 e.printStackTrace();
+                return;
             }
         }
-        System.out.println("Doses updated!");
+        out.println("Doses updated!");
     }
 
-    private static List<Map<String, Object>> fetchAppointments(ResultSet rs) throws SQLException {
-        List<Map<String, Object>> appointments = new ArrayList<>();
-        ResultSetMetaData metaData = rs.getMetaData();
-        int columnCount = metaData.getColumnCount();
-
-        while (rs.next()) {
-            Map<String, Object> row = new HashMap<>();
-            for (int i = 1; i <= columnCount; i++) {
-                row.put(metaData.getColumnLabel(i), rs.getObject(i));
+    private static void importFile(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // import <patients|caregivers|vaccines|availability> <file.csv> [batch_size]
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCurrentCaregiver() == null) {
+            fail(session, "Please login as a caregiver first!");
+            return;
+        }
+        // check 2: kind and file are required, the batch size is optional
+        if (tokens.length != 3 && tokens.length != 4) {
+            fail(session, "Please try again!");
+            return;
+        }
+        BulkImporter importer;
+        Path file;
+        try {
+            ImportKind kind = ImportKind.fromName(tokens[1]);
+            int batchSize = tokens.length == 4 ? Integer.parseInt(tokens[3]) : DEFAULT_IMPORT_BATCH_SIZE;
+            importer = new BulkImporter(kind, batchSize);
+            // check 3: the file is read on the server, so only files in the import directory are allowed
+            file = BulkImporter.resolve(tokens[2]);
+        } catch (IllegalArgumentException e) {
+            fail(session, "Please try again!");
+            return;
+        } catch (IOException e) {
+            fail(session, "Could not read " + tokens[2]);
+            return;
+        }
+        try {
+            BulkImporter.Result result = importer.importFile(file);
+            out.println("Imported " + result.getImported() + " rows, rejected " + result.getRejected());
+            if (result.getRejectsFile() != null) {
+                out.println("Rejected rows written to " + result.getRejectsFile());
             }
-            appointments.add(row);
+        } catch (IOException e) {
+            fail(session, "Could not read " + tokens[2]);
+        } catch (SQLException e) {
+            fail(session, "Error occurred when importing");
+            e.printStackTrace();
         }
-        return appointments;
     }
 
-    private static void showAppointments(String[] tokens) {
+    private static void showAppointments(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // TODO: Part 2
-        if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first");
+        // show_appointments [--after <appointment_id>] [--limit <n>] [--from <date> --to <date>]
+        if (session.getCurrentPatient() == null && session.getCurrentCaregiver() == null) {
+            fail(session, "Please login first");
             return;
         }
 
-        if (tokens.length != 1) {
-            System.out.println("Please try again");
+        int afterId = 0;
+        int limit = 0;
+        Date from = null;
+        Date to = null;
+        try {
+            if (tokens.length % 2 != 1) {
+                throw new IllegalArgumentException();
+            }
+            for (int i = 1; i < tokens.length; i += 2) {
+                String value = tokens[i + 1];
+                if (tokens[i].equals("--after")) {
+                    afterId = Integer.parseInt(value);
+                } else if (tokens[i].equals("--limit")) {
+                    limit = Integer.parseInt(value);
+                } else if (tokens[i].equals("--from")) {
+                    from = Date.valueOf(value);
+                } else if (tokens[i].equals("--to")) {
+                    to = Date.valueOf(value);
+                } else {
+                    throw new IllegalArgumentException();
+                }
+            }
+            if (afterId < 0 || limit < 0) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            fail(session, "Please try again");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection conn = cm.createConnection();
+        // 患者看到护理人员, 护理人员看到患者
+        boolean patient = session.getCurrentPatient() != null;
+        StorageEngine.Role role = patient ? StorageEngine.Role.PATIENT : StorageEngine.Role.CAREGIVER;
+        String username = patient ? session.getCurrentPatient().getUsername() : session.getCurrentCaregiver().getUsername();
 
+        // 打印每个预约, served from memory once the user's appointments were read
+        int[] printed = {0};
+        int[] lastId = {afterId};
+        AppointmentPage page = new AppointmentPage(afterId, limit, from, to);
         try {
-            if (currentPatient != null) {
-                // 获取患者的预约
-                String getPatientAppointments = "SELECT a_id, vaccine_name, date, c_username FROM Appointments WHERE " +
-                        "p_username = ? ORDER BY a_id";
-
-                try (PreparedStatement stmt = conn.prepareStatement(getPatientAppointments)) {
-                    stmt.setString(1, currentPatient.getUsername());
-                    ResultSet rs = stmt.executeQuery();
-
-                    List<Map<String, Object>> appointments = fetchAppointments(rs);
-
-                    if (appointments.isEmpty()) {
-                        System.out.println("There are no appointments scheduled");
-                        return;
-                    }
-
-                    // 打印每个预约
-                    for (Map<String, Object> appointment : appointments) {
-                        System.out.printf("%-15s %-15s %-15s %-15s%n",
-                                appointment.get("a_id"),
-                                appointment.get("vaccine_name"),
-                                appointment.get("date").toString(),
-                                appointment.get("c_username"));
-                    }
-                }
-            } else if (currentCaregiver != null) {
-                // 获取护理人员的预约
-                String getCaregiverAppointments = "SELECT a_id, vaccine_name, date, p_username FROM Appointments WHERE " +
-                        "c_username = ? ORDER BY a_id";
-
-                try (PreparedStatement stmt = conn.prepareStatement(getCaregiverAppointments)) {
-                    stmt.setString(1, currentCaregiver.getUsername());
-                    ResultSet rs = stmt.executeQuery();
+            AppointmentViewCache.getInstance().forEachAppointment(role, username, page,
+                    appointment -> {
+                        out.printf("%-15s %-15s %-15s %-15s%n",
+                                appointment.getId(),
+                                appointment.getVaccineName(),
+                                appointment.getDate().toString(),
+                                patient ? appointment.getCaregiverUsername() : appointment.getPatientUsername());
+                        printed[0]++;
+                        lastId[0] = appointment.getId();
+                    });
+        } catch (SQLException e) {
+            fail(session, "Please try again");
+            return;
+        }
 
-                    List<Map<String, Object>> appointments = fetchAppointments(rs);
+        if (printed[0] == 0) {
+            out.println("There are no appointments scheduled");
+        } else if (limit > 0 && printed[0] == limit) {
+            out.println("Next page: show_appointments --after " + lastId[0] + " --limit " + limit
+                    + (from != null ? " --from " + from : "") + (to != null ? " --to " + to : ""));
+        }
+    }
 
-                    if (appointments.isEmpty()) {
-                        System.out.println("There are no appointments scheduled");
-                        return;
-                    }
+    private static void stats(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // stats [reset]
+        if (tokens.length == 2 && tokens[1].equals("reset")) {
+            // the stats are shared by every session, so only the console may wipe them (or JMX)
+            if (!session.isConsole()) {
+                fail(session, "Only the console can reset the stats!");
+                return;
+            }
+            Metrics.getInstance().reset();
+            out.println("Stats reset");
+            return;
+        }
+        if (tokens.length != 1) {
+            fail(session, "Please try again!");
+            return;
+        }
+        Metrics.getInstance().print(out);
+    }
 
-                    // 打印每个预约
-                    for (Map<String, Object> appointment : appointments) {
-                        System.out.printf("%-15s %-15s %-15s %-15s%n",
-                                appointment.get("a_id"),
-                                appointment.get("vaccine_name"),
-                                appointment.get("date").toString(),
-                                appointment.get("p_username"));
-                    }
-                }
+    private static void trace(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
+        // trace [on|off|slow <ms>|roundtrips <number>]
+        QueryTracer tracer = QueryTracer.getInstance();
+        // tracing is shared by every session, so only the console may change it; anyone may see it
+        if (tokens.length != 1 && !session.isConsole()) {
+            fail(session, "Only the console can change SQL tracing!");
+            return;
+        }
+        try {
+            if (tokens.length == 2 && tokens[1].equals("on")) {
+                tracer.setEnabled(true);
+            } else if (tokens.length == 2 && tokens[1].equals("off")) {
+                tracer.setEnabled(false);
+            } else if (tokens.length == 3 && tokens[1].equals("slow")) {
+                tracer.setSlowQueryMillis(Long.parseLong(tokens[2]));
+            } else if (tokens.length == 3 && tokens[1].equals("roundtrips")) {
+                tracer.setMaxRoundTrips(Integer.parseInt(tokens[2]));
+            } else if (tokens.length != 1) {
+                fail(session, "Please try again!");
+                return;
             }
-        } catch (SQLException e) {
-            System.out.println("Please try again");
-        } finally {
-            cm.closeConnection();
+        } catch (NumberFormatException e) {
+            fail(session, "Please try again!");
+            return;
         }
+        out.println("SQL tracing is " + (tracer.isEnabled() ? "on" : "off") + ": statements over "
+                + tracer.getSlowQueryMillis() + "ms and commands with more than " + tracer.getMaxRoundTrips()
+                + " round-trips are logged to " + tracer.getLogFile());
+    }
+
+    // prints the reply of a command that did not do what was asked
+    private static void fail(Session session, String message) {
+        session.markFailed();
+        session.getOut().println(message);
     }
 
-    private static void logout(String[] tokens) {
+    private static void logout(Session session, String[] tokens) {
+        PrintStream out = session.getOut();
         // TODO: Part 2
         try{
-            if(currentPatient != null || currentCaregiver != null){
-                currentPatient = null;
-                currentCaregiver = null;
-                System.out.println("Successfully logged out");
+            if(session.getCurrentPatient() != null || session.getCurrentCaregiver() != null){
+                session.setCurrentPatient(null);
+                session.setCurrentCaregiver(null);
+                out.println("Successfully logged out");
                 return;
             }else{
-                System.out.println("Please login first");
+                fail(session, "Please login first");
             }
         } catch (Exception e) {
-            System.out.println("Please try again");
+            fail(session, "Please try again");
             return;
         }
     }
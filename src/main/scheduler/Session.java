@@ -0,0 +1,71 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.PrintStream;
+
+/**
+ * State of one user of the scheduler: who is logged in and where command output goes.
+ * The REPL has a single console session on stdout; the server has one per connected terminal.
+ */
+public class Session {
+
+    private final PrintStream out;
+    // the console of the process, as opposed to a terminal connected to the server; only it may change
+    // process-wide settings such as the stats and SQL tracing
+    private final boolean console;
+
+    // objects to keep track of the currently logged-in user
+    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
+    //       since only one user can be logged-in at a time in a session
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+
+    // set by a command that did not do what was asked, so it is counted as failed
+    private boolean failed = false;
+
+    public Session(PrintStream out) {
+        this(out, false);
+    }
+
+    public Session(PrintStream out, boolean console) {
+        this.out = out;
+        this.console = console;
+    }
+
+    public PrintStream getOut() {
+        return out;
+    }
+
+    public boolean isConsole() {
+        return console;
+    }
+
+    public Caregiver getCurrentCaregiver() {
+        return currentCaregiver;
+    }
+
+    public void setCurrentCaregiver(Caregiver currentCaregiver) {
+        this.currentCaregiver = currentCaregiver;
+    }
+
+    public Patient getCurrentPatient() {
+        return currentPatient;
+    }
+
+    public void setCurrentPatient(Patient currentPatient) {
+        this.currentPatient = currentPatient;
+    }
+
+    public void markFailed() {
+        this.failed = true;
+    }
+
+    // whether the last command failed; clears the flag for the next one
+    public boolean takeFailed() {
+        boolean result = failed;
+        failed = false;
+        return result;
+    }
+}
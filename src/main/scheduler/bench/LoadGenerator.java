@@ -0,0 +1,371 @@
+package scheduler.bench;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.cache.AppointmentViewCache;
+import scheduler.cache.VaccineStockCache;
+import scheduler.model.Appointment;
+import scheduler.model.Patient;
+import scheduler.model.VaccineStock;
+import scheduler.storage.AppointmentPage;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+import scheduler.util.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates many users against the scheduler and checks afterwards that no reservation was lost or doubled.
+ *
+ * Setup creates the patients, caregivers and vaccines and uploads availability with the regular commands.
+ * The run then fires reserve, cancel and show_appointments commands through {@link Scheduler#execute} with
+ * exponentially distributed arrivals at a fixed rate (open loop): latency is measured from when a command was
+ * due, not from when a worker got to it, so a backlog shows up in the numbers instead of slowing the arrivals.
+ *
+ * The checks after the run:
+ * - no caregiver has two appointments on one date, and a booked caregiver is no longer available that day
+ * - every vaccine's doses equal its initial stock minus its live appointments, in storage and in the stock cache
+ * - no appointment id appears twice, and patients and caregivers see the same appointments
+ * - show_appointments shows every patient exactly the stored appointments
+ *
+ * All names carry a tag unique to the run, so it can also run against a database that has other data.
+ * The process exits with 1 if a check fails.
+ *
+ * Usage: LoadGenerator [--patients 1000] [--caregivers 50] [--vaccines 3] [--days 14] [--doses 100000]
+ *                      [--rate 500] [--duration 30] [--workers 64] [--mix reserve=50,cancel=20,show=30]
+ *                      [--storage memory|sqlserver]
+ */
+public class LoadGenerator {
+
+    private static final String PASSWORD = "Load#Passw0rd";
+    private static final LocalDate FIRST_DAY = LocalDate.of(2031, 1, 1);
+
+    private static class Command {
+        private final String name;
+        private final Histogram latencies = new Histogram();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+
+        private Command(String name) {
+            this.name = name;
+        }
+    }
+
+    private final int patients;
+    private final int caregivers;
+    private final int vaccines;
+    private final int days;
+    private final int doses;
+    private final double rate;
+    private final int durationSeconds;
+    private final int workers;
+    private final Map<String, Integer> mix;
+
+    private final String tag = "lg" + Long.toString(System.currentTimeMillis() % 100_000_000L, 36) + "_";
+    private final Map<String, Command> commands = new LinkedHashMap<>();
+    private final AtomicLong backlog = new AtomicLong();
+
+    public LoadGenerator(int patients, int caregivers, int vaccines, int days, int doses, double rate,
+                         int durationSeconds, int workers, Map<String, Integer> mix) {
+        this.patients = patients;
+        this.caregivers = caregivers;
+        this.vaccines = vaccines;
+        this.days = days;
+        this.doses = doses;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.workers = workers;
+        this.mix = mix;
+        for (String name : mix.keySet()) {
+            commands.put(name, new Command(name));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        if (options.containsKey("--storage")) {
+            StorageEngines.set(StorageEngines.create(options.get("--storage")));
+        }
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : options.getOrDefault("--mix", "reserve=50,cancel=20,show=30").split(",")) {
+            String[] weight = part.split("=");
+            if (!weight[0].equals("reserve") && !weight[0].equals("cancel") && !weight[0].equals("show")) {
+                System.out.println("Unknown command in mix: " + weight[0]);
+                return;
+            }
+            mix.put(weight[0], Integer.parseInt(weight[1]));
+        }
+
+        LoadGenerator generator = new LoadGenerator(
+                Integer.parseInt(options.getOrDefault("--patients", "1000")),
+                Integer.parseInt(options.getOrDefault("--caregivers", "50")),
+                Integer.parseInt(options.getOrDefault("--vaccines", "3")),
+                Integer.parseInt(options.getOrDefault("--days", "14")),
+                Integer.parseInt(options.getOrDefault("--doses", "100000")),
+                Double.parseDouble(options.getOrDefault("--rate", "500")),
+                Integer.parseInt(options.getOrDefault("--duration", "30")),
+                Integer.parseInt(options.getOrDefault("--workers", "64")),
+                mix);
+
+        Scheduler.init();
+        generator.setUp();
+        generator.run();
+        generator.report();
+        List<String> violations = generator.check();
+        if (violations.isEmpty()) {
+            System.out.println("All invariants hold");
+        } else {
+            for (String violation : violations) {
+                System.out.println("VIOLATION: " + violation);
+            }
+            System.exit(1);
+        }
+    }
+
+    private String patient(int i) {
+        return tag + "p" + i;
+    }
+
+    private String caregiver(int i) {
+        return tag + "c" + i;
+    }
+
+    private String vaccine(int i) {
+        return tag + "v" + i;
+    }
+
+    // creates every user and vaccine with the regular commands; fails loudly if any of them is refused
+    private void setUp() {
+        System.out.println("Setting up " + patients + " patients, " + caregivers + " caregivers and "
+                + vaccines + " vaccines over " + days + " days (tag " + tag + ")");
+        LocalDate lastDay = FIRST_DAY.plusDays(days - 1);
+        for (int i = 0; i < caregivers; i++) {
+            expect("create_caregiver " + caregiver(i) + " " + PASSWORD, new Session(discard()), "Created user");
+            Session session = new Session(discard());
+            expect("login_caregiver " + caregiver(i) + " " + PASSWORD, session, "Logged in as");
+            expect("upload_availability_range " + FIRST_DAY + " " + lastDay, session, "Availability uploaded");
+            if (i < vaccines) {
+                expect("add_doses " + vaccine(i) + " " + doses, session, "Doses updated");
+            }
+        }
+        for (int i = caregivers; i < vaccines; i++) {
+            // more vaccines than caregivers: let the first caregiver add the rest
+            Session session = new Session(discard());
+            expect("login_caregiver " + caregiver(0) + " " + PASSWORD, session, "Logged in as");
+            expect("add_doses " + vaccine(i) + " " + doses, session, "Doses updated");
+        }
+        for (int i = 0; i < patients; i++) {
+            expect("create_patient " + patient(i) + " " + PASSWORD, new Session(discard()), "Created user");
+        }
+    }
+
+    private static void expect(String line, Session session, String expected) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Session capturing = new Session(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        capturing.setCurrentCaregiver(session.getCurrentCaregiver());
+        capturing.setCurrentPatient(session.getCurrentPatient());
+        Scheduler.execute(capturing, line);
+        session.setCurrentCaregiver(capturing.getCurrentCaregiver());
+        session.setCurrentPatient(capturing.getCurrentPatient());
+        String output = buffer.toString(StandardCharsets.UTF_8);
+        if (!output.contains(expected)) {
+            throw new IllegalStateException("Setup failed at '" + line + "': " + output.trim());
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf(Locale.ROOT, "Running %.0f commands/s for %d s on %d workers%n",
+                rate, durationSeconds, workers);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "load-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        int totalWeight = 0;
+        for (int weight : mix.values()) {
+            totalWeight += weight;
+        }
+
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1_000_000_000L;
+        long due = start;
+        long maxBacklog = 0;
+        while (true) {
+            // exponential gaps give Poisson arrivals at the requested rate
+            due += (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / rate * 1e9);
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Command command = pick(totalWeight);
+            long dueAt = due;
+            maxBacklog = Math.max(maxBacklog, backlog.incrementAndGet());
+            pool.execute(() -> {
+                try {
+                    execute(command, dueAt);
+                } finally {
+                    backlog.decrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        System.out.println("Largest backlog: " + maxBacklog + " commands");
+    }
+
+    private Command pick(int totalWeight) {
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) {
+                return commands.get(entry.getKey());
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private void execute(Command command, long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String username = patient(random.nextInt(patients));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Session session = new Session(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        // the user is already logged in; the load is on the commands, not on password hashing
+        session.setCurrentPatient(new Patient.PatientBuilder(username, null, null).build());
+
+        String line;
+        String success;
+        if (command.name.equals("reserve")) {
+            line = "reserve " + FIRST_DAY.plusDays(random.nextInt(days)) + " " + vaccine(random.nextInt(vaccines));
+            success = "Appointment ID";
+        } else if (command.name.equals("cancel")) {
+            List<Appointment> own;
+            try {
+                own = StorageEngines.get().getAppointments(StorageEngine.Role.PATIENT, username);
+            } catch (SQLException e) {
+                own = new ArrayList<>();
+            }
+            if (own.isEmpty()) {
+                command.skipped.incrementAndGet();
+                return;
+            }
+            line = "cancel " + own.get(random.nextInt(own.size())).getId();
+            success = "successfully cancelled";
+        } else {
+            line = "show_appointments";
+            success = "";
+        }
+
+        Scheduler.execute(session, line);
+        command.latencies.record(System.nanoTime() - due);
+        if (buffer.toString(StandardCharsets.UTF_8).contains(success)) {
+            command.succeeded.incrementAndGet();
+        }
+    }
+
+    private void report() {
+        System.out.printf("%-10s %10s %10s %10s %12s %10s %10s %10s%n",
+                "command", "executed", "succeeded", "skipped", "ops/s", "p50(ms)", "p99(ms)", "p999(ms)");
+        for (Command command : commands.values()) {
+            Histogram h = command.latencies;
+            System.out.printf(Locale.ROOT, "%-10s %10d %10d %10d %12.1f %10.2f %10.2f %10.2f%n",
+                    command.name, h.getCount(), command.succeeded.get(), command.skipped.get(),
+                    (double) h.getCount() / durationSeconds,
+                    h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getPercentile(99.9) / 1e6);
+        }
+    }
+
+    private List<String> check() throws SQLException {
+        StorageEngine engine = StorageEngines.get();
+        List<String> violations = new ArrayList<>();
+
+        Set<Integer> ids = new HashSet<>();
+        Map<String, Integer> booked = new HashMap<>();
+        int patientView = 0;
+        for (int i = 0; i < patients; i++) {
+            List<Integer> stored = new ArrayList<>();
+            for (Appointment appointment : engine.getAppointments(StorageEngine.Role.PATIENT, patient(i))) {
+                patientView++;
+                stored.add(appointment.getId());
+                if (!ids.add(appointment.getId())) {
+                    violations.add("appointment id " + appointment.getId() + " appears twice");
+                }
+                booked.merge(appointment.getVaccineName().toLowerCase(Locale.ROOT), 1, Integer::sum);
+            }
+            // what show_appointments would print
+            List<Integer> shown = new ArrayList<>();
+            AppointmentViewCache.getInstance().forEachAppointment(StorageEngine.Role.PATIENT, patient(i),
+                    new AppointmentPage(0, 0, null, null), appointment -> shown.add(appointment.getId()));
+            if (!shown.equals(stored)) {
+                violations.add(patient(i) + " is shown appointments " + shown + ", stored " + stored);
+            }
+        }
+
+        int caregiverView = 0;
+        for (int i = 0; i < caregivers; i++) {
+            Set<Date> dates = new HashSet<>();
+            for (Appointment appointment : engine.getAppointments(StorageEngine.Role.CAREGIVER, caregiver(i))) {
+                caregiverView++;
+                if (!dates.add(appointment.getDate())) {
+                    violations.add(caregiver(i) + " is booked twice on " + appointment.getDate());
+                }
+                if (engine.getAvailableCaregivers(appointment.getDate()).contains(caregiver(i))) {
+                    violations.add(caregiver(i) + " is booked and still available on " + appointment.getDate());
+                }
+                if (!ids.contains(appointment.getId())) {
+                    violations.add("appointment " + appointment.getId() + " has no patient of this run");
+                }
+            }
+        }
+        if (patientView != caregiverView) {
+            violations.add("patients see " + patientView + " appointments, caregivers see " + caregiverView);
+        }
+
+        for (int i = 0; i < vaccines; i++) {
+            VaccineStock stock = engine.getVaccineStock(vaccine(i));
+            int live = booked.getOrDefault(vaccine(i).toLowerCase(Locale.ROOT), 0);
+            if (stock == null || stock.getDoses() != doses - live) {
+                violations.add(vaccine(i) + " has " + (stock == null ? "no" : stock.getDoses()) + " doses, expected "
+                        + doses + " - " + live);
+            }
+            VaccineStock cached = VaccineStockCache.getInstance().get(vaccine(i));
+            if (VaccineStockCache.getInstance().isReady() && stock != null
+                    && (cached == null || cached.getDoses() != stock.getDoses())) {
+                violations.add(vaccine(i) + " has " + (cached == null ? "no" : cached.getDoses())
+                        + " doses in the stock cache, " + stock.getDoses() + " stored");
+            }
+        }
+
+        System.out.println("Checked " + patientView + " live appointments");
+        return violations;
+    }
+
+    private static PrintStream discard() {
+        return new PrintStream(OutputStream.nullOutputStream());
+    }
+}
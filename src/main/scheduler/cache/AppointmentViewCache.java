@@ -0,0 +1,243 @@
+package scheduler.cache;
+
+import scheduler.metrics.Metrics;
+import scheduler.model.Appointment;
+import scheduler.storage.AppointmentPage;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * The appointments of the patients and caregivers that looked at them recently, so that repeated
+ * show_appointments calls are served from memory.
+ *
+ * A user's appointments are read from the storage engine the first time they are shown, then every
+ * reservation and cancellation made through this process adds or removes the one appointment in the views
+ * of its patient and caregiver. A view older than the maximum age is read again, to pick up changes made by
+ * other processes. Once the estimated size of all views goes over the memory cap the least recently used
+ * ones are dropped. Names are compared case-insensitively, like the database's default collation does.
+ *
+ * Only whole lists are cached. Pages (--after, --limit, --from, --to) are streamed from the storage engine,
+ * which reads just the rows asked for. A view is built while the rows are streamed to the caller and dropped
+ * as soon as it outgrows the cap, and its user is then streamed without building a view until the maximum
+ * age has passed, so a user with too many appointments to cache costs no more than with the cache off.
+ */
+public class AppointmentViewCache {
+
+    private static final AppointmentViewCache instance = new AppointmentViewCache();
+
+    // write counters by view key hash: a view read while its user booked or cancelled is not kept
+    private static final int STRIPES = 64;
+    // rough heap cost of a view and of one appointment in it, not counting the characters of the names
+    private static final long VIEW_BYTES = 200;
+    private static final long APPOINTMENT_BYTES = 200;
+    // cancelled ids remembered, so a booking reported after its own cancellation is not shown again
+    private static final int TOMBSTONES = 4096;
+
+    private static class View {
+        private final NavigableMap<Integer, Appointment> appointments = new TreeMap<>();
+        private final long loadedAt = System.currentTimeMillis();
+        private long bytes = VIEW_BYTES;
+    }
+
+    // in access order, so the eldest entry is the least recently used view
+    private final LinkedHashMap<String, View> views = new LinkedHashMap<>(16, 0.75f, true);
+    private final long[] stamps = new long[STRIPES];
+    // ids are never reused, so an id once cancelled never needs to be added again
+    private final Map<Integer, Boolean> cancelled = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > TOMBSTONES;
+        }
+    };
+    // users whose view was too big to keep, with when that was found
+    private final Map<String, Long> oversize = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > TOMBSTONES;
+        }
+    };
+    private long totalBytes = 0;
+    private volatile long maxBytes = 16L << 20;
+    private volatile long maxAgeMillis = 60_000;
+
+    private AppointmentViewCache() {
+    }
+
+    public static AppointmentViewCache getInstance() {
+        return instance;
+    }
+
+    // a cap of 0 turns the cache off and reads every page from the storage engine
+    public synchronized void configure(long maxBytes, long maxAgeSeconds) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeSeconds * 1000;
+        oversize.clear();
+        evict();
+    }
+
+    // forgets everything, e.g. when the storage engine is replaced and ids start over
+    public synchronized void clear() {
+        views.clear();
+        cancelled.clear();
+        oversize.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * Hands one page of the appointments of the patient or caregiver to the action, sorted by id, like
+     * {@link StorageEngine#forEachAppointment}. The action runs after the cache lock is released.
+     */
+    public void forEachAppointment(StorageEngine.Role role, String username, AppointmentPage page,
+                                   Consumer<Appointment> action) throws SQLException {
+        String key = key(role, username);
+        if (maxBytes <= 0 || !page.isWhole() || isOversize(key)) {
+            Metrics.getInstance().counter("cache.appointments.bypassed").add(1);
+            StorageEngines.get().forEachAppointment(role, username, page, action);
+            return;
+        }
+        List<Appointment> rows = cachedRows(key);
+        if (rows != null) {
+            Metrics.getInstance().counter("cache.appointments.hits").add(1);
+            for (Appointment appointment : rows) {
+                action.accept(appointment);
+            }
+            return;
+        }
+        Metrics.getInstance().counter("cache.appointments.misses").add(1);
+        long stamp = stamp(key);
+        View[] view = {new View()};
+        StorageEngines.get().forEachAppointment(role, username, page, appointment -> {
+            if (view[0] != null) {
+                view[0].appointments.put(appointment.getId(), appointment);
+                view[0].bytes += size(appointment);
+                if (view[0].bytes > maxBytes) {
+                    // could never be kept, so stop holding on to the rows
+                    view[0] = null;
+                }
+            }
+            action.accept(appointment);
+        });
+        if (view[0] != null) {
+            install(key, stamp, view[0]);
+        } else {
+            markOversize(key);
+        }
+    }
+
+    // a reservation booked the appointment
+    public synchronized void added(Appointment appointment) {
+        if (cancelled.containsKey(appointment.getId())) {
+            return;
+        }
+        for (String key : keys(appointment)) {
+            stamps[stripe(key)]++;
+            View view = views.get(key);
+            if (view != null && view.appointments.put(appointment.getId(), appointment) == null) {
+                view.bytes += size(appointment);
+                totalBytes += size(appointment);
+            }
+        }
+        evict();
+    }
+
+    // the appointment was cancelled
+    public synchronized void removed(Appointment appointment) {
+        cancelled.put(appointment.getId(), Boolean.TRUE);
+        for (String key : keys(appointment)) {
+            stamps[stripe(key)]++;
+            View view = views.get(key);
+            if (view != null && view.appointments.remove(appointment.getId()) != null) {
+                view.bytes -= size(appointment);
+                totalBytes -= size(appointment);
+            }
+        }
+    }
+
+    // the appointments copied out of the view, or null if the view is not cached or too old
+    private synchronized List<Appointment> cachedRows(String key) {
+        View view = views.get(key);
+        if (view == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - view.loadedAt > maxAgeMillis) {
+            views.remove(key);
+            totalBytes -= view.bytes;
+            return null;
+        }
+        return new ArrayList<>(view.appointments.values());
+    }
+
+    // whether the user's view was found too big within the maximum age; it may have shrunk since
+    private synchronized boolean isOversize(String key) {
+        Long foundAt = oversize.get(key);
+        if (foundAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - foundAt > maxAgeMillis) {
+            oversize.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void markOversize(String key) {
+        oversize.put(key, System.currentTimeMillis());
+        Metrics.getInstance().counter("cache.appointments.oversize").add(1);
+    }
+
+    private synchronized long stamp(String key) {
+        return stamps[stripe(key)];
+    }
+
+    // keeps a freshly read view, unless its user booked or cancelled while it was being read
+    private synchronized void install(String key, long stamp, View view) {
+        if (stamps[stripe(key)] != stamp) {
+            return;
+        }
+        View previous = views.put(key, view);
+        if (previous != null) {
+            totalBytes -= previous.bytes;
+        }
+        totalBytes += view.bytes;
+        evict();
+    }
+
+    // drops the least recently used views until the cache is under its cap
+    private void evict() {
+        Iterator<Map.Entry<String, View>> eldest = views.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            Metrics.getInstance().counter("cache.appointments.evictions").add(1);
+        }
+    }
+
+    private static String[] keys(Appointment appointment) {
+        return new String[]{key(StorageEngine.Role.PATIENT, appointment.getPatientUsername()),
+                key(StorageEngine.Role.CAREGIVER, appointment.getCaregiverUsername())};
+    }
+
+    private static String key(StorageEngine.Role role, String username) {
+        return role.name() + ":" + username.toLowerCase(Locale.ROOT);
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private static long size(Appointment appointment) {
+        return APPOINTMENT_BYTES + 2L * (appointment.getPatientUsername().length()
+                + appointment.getCaregiverUsername().length() + appointment.getVaccineName().length());
+    }
+}
@@ -0,0 +1,282 @@
+package scheduler.cache;
+
+import scheduler.service.Waitlist;
+import scheduler.storage.CaregiverAssignment;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the Availabilities table: for every date, the sorted set of caregivers that are free.
+ * Usernames are sorted and compared case-insensitively, like the database's default collation does, so the
+ * index picks caregivers in the same order as the database.
+ *
+ * The index is loaded when the application starts, kept up to date by every command that changes
+ * availability, and reloaded from the storage engine periodically to pick up changes made by other processes.
+ * Changes made while a reload reads the storage engine are applied again to the reloaded copy before it
+ * replaces the current one, so none of them is lost. Until the first load succeeds {@link #isReady()} is false
+ * and callers should query the database instead; after that the index can still be behind the database, so a
+ * caregiver it does not have is no proof that nobody is free.
+ *
+ * A reload that finds caregivers free on a date who were not free in the old copy, e.g. freed by another
+ * process, tells the {@link Waitlist} about the date.
+ *
+ * It also counts the appointments of every caregiver, for the LEAST_BOOKED {@link CaregiverAssignment}.
+ */
+public class AvailabilityIndex {
+
+    private static final AvailabilityIndex instance = new AvailabilityIndex();
+
+    // a caregiver became free (or was taken) on a date while a reload was running
+    private static class Delta {
+        private final LocalDate date;
+        private final String username;
+        private final boolean free;
+
+        private Delta(LocalDate date, String username, boolean free) {
+            this.date = date;
+            this.username = username;
+            this.free = free;
+        }
+    }
+
+    private volatile ConcurrentNavigableMap<LocalDate, NavigableSet<String>> byDate = new ConcurrentSkipListMap<>();
+    private volatile Map<String, AtomicInteger> bookings = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private volatile boolean ready = false;
+    private ScheduledExecutorService reconciler = null;
+    // changes take the read lock, so they run concurrently; swapping in a reloaded copy takes the write lock
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    // changes made since the running reload started, or null if no reload is running
+    private Queue<Delta> journal = null;
+
+    private AvailabilityIndex() {
+    }
+
+    public static AvailabilityIndex getInstance() {
+        return instance;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // loads the index and reloads it every periodSeconds
+    public synchronized void start(long periodSeconds) {
+        try {
+            reload();
+        } catch (SQLException e) {
+            System.out.println("Could not load caregiver availability, searching the database instead");
+        }
+        if (reconciler == null && periodSeconds > 0) {
+            reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "availability-reconciler");
+                t.setDaemon(true);
+                return t;
+            });
+            reconciler.scheduleWithFixedDelay(() -> {
+                try {
+                    reload();
+                } catch (SQLException e) {
+                    // keep serving the current copy and try again next time
+                }
+            }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void reload() throws SQLException {
+        List<Date> freed = new ArrayList<>();
+        swapLock.writeLock().lock();
+        try {
+            journal = new ConcurrentLinkedQueue<>();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        try {
+            ConcurrentNavigableMap<LocalDate, NavigableSet<String>> loaded = new ConcurrentSkipListMap<>();
+            StorageEngines.get().forEachAvailability(availability ->
+                    loaded.computeIfAbsent(availability.getDate().toLocalDate(), d -> caregivers())
+                            .add(availability.getCaregiverUsername()));
+            Map<String, AtomicInteger> counted = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, Integer> count
+                    : StorageEngines.get().countAppointments(StorageEngine.Role.CAREGIVER).entrySet()) {
+                counted.put(count.getKey(), new AtomicInteger(count.getValue()));
+            }
+            swapLock.writeLock().lock();
+            try {
+                // the load may or may not have seen these changes; applying them again is harmless either way
+                for (Delta delta : journal) {
+                    apply(loaded, delta.date, delta.username, delta.free);
+                }
+                for (Map.Entry<LocalDate, NavigableSet<String>> entry : loaded.entrySet()) {
+                    NavigableSet<String> before = byDate.get(entry.getKey());
+                    if (before == null ? !entry.getValue().isEmpty() : !before.containsAll(entry.getValue())) {
+                        freed.add(Date.valueOf(entry.getKey()));
+                    }
+                }
+                byDate = loaded;
+                bookings = counted;
+                ready = true;
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+        } finally {
+            swapLock.writeLock().lock();
+            try {
+                journal = null;
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+        }
+        for (Date date : freed) {
+            Waitlist.getInstance().availabilityAdded(date);
+        }
+    }
+
+    private static NavigableSet<String> caregivers() {
+        return new ConcurrentSkipListSet<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    // sorted snapshot of the caregivers free on the date
+    public List<String> getCaregivers(Date date) {
+        NavigableSet<String> caregivers = byDate.get(date.toLocalDate());
+        if (caregivers == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(caregivers);
+    }
+
+    // sorted snapshots of the caregivers free on each date from from to to, leaving out dates nobody is free
+    public NavigableMap<LocalDate, List<String>> getCaregivers(Date from, Date to) {
+        NavigableMap<LocalDate, List<String>> caregivers = new TreeMap<>();
+        for (Map.Entry<LocalDate, NavigableSet<String>> entry
+                : byDate.subMap(from.toLocalDate(), true, to.toLocalDate(), true).entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                caregivers.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        return caregivers;
+    }
+
+    public void add(Date date, String username) {
+        change(date.toLocalDate(), username, true);
+    }
+
+    public void remove(Date date, String username) {
+        change(date.toLocalDate(), username, false);
+    }
+
+    private void change(LocalDate date, String username, boolean free) {
+        swapLock.readLock().lock();
+        try {
+            record(date, username, free);
+            apply(byDate, date, username, free);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    // called under the read lock, so a reload cannot swap between recording a change and making it
+    private void record(LocalDate date, String username, boolean free) {
+        Queue<Delta> changes = journal;
+        if (changes != null) {
+            changes.add(new Delta(date, username, free));
+        }
+    }
+
+    private static void apply(ConcurrentNavigableMap<LocalDate, NavigableSet<String>> index, LocalDate date,
+                              String username, boolean free) {
+        if (free) {
+            index.computeIfAbsent(date, d -> caregivers()).add(username);
+        } else {
+            NavigableSet<String> caregivers = index.get(date);
+            if (caregivers != null) {
+                caregivers.remove(username);
+            }
+        }
+    }
+
+    // the caregiver got an appointment
+    public void booked(String username) {
+        bookings.computeIfAbsent(username, u -> new AtomicInteger()).incrementAndGet();
+    }
+
+    // an appointment of the caregiver was cancelled
+    public void unbooked(String username) {
+        AtomicInteger count = bookings.get(username);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    private int countBookings(String username) {
+        AtomicInteger count = bookings.get(username);
+        return count == null ? 0 : count.get();
+    }
+
+    // like claim(), but takes a free caregiver on the earliest date on or after the given one;
+    // returns the date and the caregiver, or null if nobody is free from that date on
+    public Map.Entry<Date, String> claimEarliest(Date from, String patientUsername) {
+        swapLock.readLock().lock();
+        try {
+            for (Map.Entry<LocalDate, NavigableSet<String>> entry
+                    : byDate.tailMap(from.toLocalDate(), true).entrySet()) {
+                String caregiver = take(entry.getKey(), entry.getValue(), patientUsername);
+                if (caregiver != null) {
+                    return new AbstractMap.SimpleImmutableEntry<>(Date.valueOf(entry.getKey()), caregiver);
+                }
+            }
+            return null;
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    // atomically takes the free caregiver the assignment strategy picks for the patient on the date, or returns
+    // null if there is none; a claim that is not booked after all must be given back with add()
+    public String claim(Date date, String patientUsername) {
+        swapLock.readLock().lock();
+        try {
+            NavigableSet<String> caregivers = byDate.get(date.toLocalDate());
+            return caregivers == null ? null : take(date.toLocalDate(), caregivers, patientUsername);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    private String take(LocalDate date, NavigableSet<String> caregivers, String patientUsername) {
+        CaregiverAssignment assignment = CaregiverAssignment.get();
+        String chosen;
+        do {
+            chosen = assignment.choose(caregivers, patientUsername, this::countBookings);
+            if (chosen == null) {
+                return null;
+            }
+            // someone else claimed it between choosing and removing: choose again
+        } while (!caregivers.remove(chosen));
+        record(date, chosen, false);
+        assignment.assigned(chosen);
+        return chosen;
+    }
+}
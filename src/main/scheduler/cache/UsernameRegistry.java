@@ -0,0 +1,86 @@
+package scheduler.cache;
+
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+import scheduler.util.BloomFilter;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers "is this username taken?" for one role mostly from memory.
+ *
+ * At startup every username of the table goes into a Bloom filter. A name the filter has never seen is free
+ * without asking the database; names we know exist are remembered in a set; only the remaining (possible)
+ * hits are checked with a key-only query. Names are compared case-insensitively, like the database's
+ * default collation does.
+ */
+public class UsernameRegistry {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MIN_CAPACITY = 10000;
+
+    private static final UsernameRegistry patients = new UsernameRegistry(StorageEngine.Role.PATIENT);
+    private static final UsernameRegistry caregivers = new UsernameRegistry(StorageEngine.Role.CAREGIVER);
+
+    private final StorageEngine.Role role;
+    private final Set<String> confirmed = ConcurrentHashMap.newKeySet();
+    private volatile BloomFilter filter = null;
+
+    private UsernameRegistry(StorageEngine.Role role) {
+        this.role = role;
+    }
+
+    public static UsernameRegistry patients() {
+        return patients;
+    }
+
+    public static UsernameRegistry caregivers() {
+        return caregivers;
+    }
+
+    // builds the Bloom filter from the table; until this succeeds every check goes to the database
+    public void load() throws SQLException {
+        StorageEngine engine = StorageEngines.get();
+        // leave room for the users that register while we are running
+        BloomFilter loaded = new BloomFilter(Math.max(MIN_CAPACITY, engine.countUsers(role) * 2), FALSE_POSITIVE_RATE);
+        engine.forEachUsername(role, username -> loaded.add(key(username)));
+        // names registered while we were loading
+        for (String name : confirmed) {
+            loaded.add(name);
+        }
+        filter = loaded;
+    }
+
+    public boolean exists(String username) throws SQLException {
+        String key = key(username);
+        if (confirmed.contains(key)) {
+            return true;
+        }
+        BloomFilter current = filter;
+        if (current != null && !current.mightContain(key)) {
+            return false;
+        }
+        if (StorageEngines.get().userExists(role, username)) {
+            confirmed.add(key);
+            return true;
+        }
+        return false;
+    }
+
+    // called once a user has been saved
+    public void register(String username) {
+        String key = key(username);
+        confirmed.add(key);
+        BloomFilter current = filter;
+        if (current != null) {
+            current.add(key);
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
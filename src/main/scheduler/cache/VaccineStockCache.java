@@ -0,0 +1,219 @@
+package scheduler.cache;
+
+import scheduler.model.VaccineStock;
+import scheduler.service.Waitlist;
+import scheduler.storage.StorageEngines;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the Vaccines table: the doses in stock of every vaccine.
+ *
+ * Every change made through this process (add_doses, reserve, cancel, import) is applied to the cache right
+ * after it is written to the storage engine, and the cache is reloaded periodically to pick up changes made
+ * elsewhere. Changes are numbered as they are applied; a reload sets every vaccine to the stored stock plus the
+ * changes applied after the stock was read, like the journal of {@link AvailabilityIndex}, so changes made
+ * while it reads are kept. Until the first load succeeds {@link #isReady()} is false and callers should read the
+ * database. A reload that finds more doses of a vaccine than the cache had, e.g. added by another process, tells
+ * the {@link Waitlist} about the vaccine.
+ *
+ * A change written before the read but applied after it is still counted twice until the next reload, so the
+ * cache is only a hint: a vaccine it has no doses of is checked with {@link #confirmDoses} before a patient is
+ * turned away, and one the storage engine had no doses of after all is read again with {@link #resync}.
+ */
+public class VaccineStockCache {
+
+    private static final VaccineStockCache instance = new VaccineStockCache();
+
+    // a change of the doses of a vaccine, numbered in the order the changes were applied
+    private static class Change {
+        private final long sequence;
+        private final String vaccineName;
+        private final int delta;
+
+        private Change(long sequence, String vaccineName, int delta) {
+            this.sequence = sequence;
+            this.vaccineName = vaccineName;
+            this.delta = delta;
+        }
+    }
+
+    // vaccine names are case-insensitive, like the Name column
+    private final ConcurrentNavigableMap<String, AtomicInteger> doses =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final AtomicLong sequence = new AtomicLong();
+    // changes take the read lock, so they run concurrently; setting the reloaded stock takes the write lock
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    // changes applied since the running reload started, or null if no reload is running
+    private Queue<Change> journal = null;
+    private volatile boolean ready = false;
+    private ScheduledExecutorService reconciler = null;
+
+    private VaccineStockCache() {
+    }
+
+    public static VaccineStockCache getInstance() {
+        return instance;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // loads the cache and reloads it every periodSeconds
+    public synchronized void start(long periodSeconds) {
+        try {
+            reload();
+        } catch (SQLException e) {
+            System.out.println("Could not load vaccine stock, reading the database instead");
+        }
+        if (reconciler == null && periodSeconds > 0) {
+            reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "vaccine-stock-reconciler");
+                t.setDaemon(true);
+                return t;
+            });
+            reconciler.scheduleWithFixedDelay(() -> {
+                try {
+                    reload();
+                } catch (SQLException e) {
+                    // keep serving the current copy and try again next time
+                }
+            }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void reload() throws SQLException {
+        reconcile(null);
+    }
+
+    // reads the stock of every vaccine, or of the one given, and sets the cache to it plus the changes since
+    private synchronized void reconcile(String vaccineName) throws SQLException {
+        setJournal(new ConcurrentLinkedQueue<>());
+        List<String> restocked = new ArrayList<>();
+        try {
+            List<VaccineStock> stored;
+            if (vaccineName == null) {
+                stored = StorageEngines.get().getVaccineStocks();
+            } else {
+                VaccineStock stock = StorageEngines.get().getVaccineStock(vaccineName);
+                stored = stock == null ? Collections.emptyList() : Collections.singletonList(stock);
+            }
+            // a change is applied after it is written, so the ones applied so far are in what was read
+            long read = sequence.get();
+            swapLock.writeLock().lock();
+            try {
+                Map<String, Integer> counted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                for (VaccineStock stock : stored) {
+                    counted.put(stock.getName(), stock.getDoses());
+                }
+                for (Change change : journal) {
+                    if (change.sequence > read) {
+                        counted.merge(change.vaccineName, change.delta, Integer::sum);
+                    }
+                }
+                // cached but neither stored nor changed since, e.g. after the storage engine was replaced
+                if (vaccineName == null) {
+                    doses.keySet().retainAll(counted.keySet());
+                } else if (counted.isEmpty()) {
+                    doses.remove(vaccineName);
+                }
+                for (Map.Entry<String, Integer> entry : counted.entrySet()) {
+                    int before = doses.computeIfAbsent(entry.getKey(), name -> new AtomicInteger())
+                            .getAndSet(entry.getValue());
+                    if (entry.getValue() > before) {
+                        restocked.add(entry.getKey());
+                    }
+                }
+                if (vaccineName == null) {
+                    ready = true;
+                }
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+        } finally {
+            setJournal(null);
+        }
+        for (String name : restocked) {
+            Waitlist.getInstance().dosesAdded(name);
+        }
+    }
+
+    private void setJournal(Queue<Change> changes) {
+        swapLock.writeLock().lock();
+        try {
+            journal = changes;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+
+    // null if there is no such vaccine
+    public VaccineStock get(String vaccineName) {
+        Map.Entry<String, AtomicInteger> entry = doses.ceilingEntry(vaccineName);
+        if (entry == null || String.CASE_INSENSITIVE_ORDER.compare(entry.getKey(), vaccineName) != 0) {
+            return null;
+        }
+        return new VaccineStock(entry.getKey(), entry.getValue().get());
+    }
+
+    // every vaccine, sorted by name
+    public List<VaccineStock> getStocks() {
+        List<VaccineStock> stocks = new ArrayList<>();
+        for (Map.Entry<String, AtomicInteger> entry : doses.entrySet()) {
+            stocks.add(new VaccineStock(entry.getKey(), entry.getValue().get()));
+        }
+        return stocks;
+    }
+
+    // whether a dose may be left; a false positive only costs the storage engine a failed decrement
+    public boolean hasDoses(String vaccineName) {
+        AtomicInteger current = doses.get(vaccineName);
+        return current != null && current.get() > 0;
+    }
+
+    /**
+     * Asks the storage engine whether a dose of the vaccine is left, after {@link #hasDoses} said there was
+     * none, and corrects the cache with the answer.
+     */
+    public boolean confirmDoses(String vaccineName) throws SQLException {
+        resync(vaccineName);
+        return hasDoses(vaccineName);
+    }
+
+    // reads the stock of the vaccine again, e.g. after the storage engine had no doses the cache said it had
+    public void resync(String vaccineName) throws SQLException {
+        reconcile(vaccineName);
+    }
+
+    // applies a change that was written to the storage engine; adds the vaccine if it is new
+    public void add(String vaccineName, int delta) {
+        swapLock.readLock().lock();
+        try {
+            long number = sequence.incrementAndGet();
+            Queue<Change> changes = journal;
+            if (changes != null) {
+                changes.add(new Change(number, vaccineName, delta));
+            }
+            doses.computeIfAbsent(vaccineName, name -> new AtomicInteger()).addAndGet(delta);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+}
@@ -1,41 +1,88 @@
 package scheduler.db;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    // JdbcUrl points at another SQL Server, e.g. a local one to run the benchmarks against
+    private static final String connectionUrl = System.getenv("JdbcUrl") != null ? System.getenv("JdbcUrl")
+            : "jdbc:sqlserver://" + System.getenv("Server") + ".database.windows.net:1433;database="
+            + System.getenv("DBName");
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
+
+    // pool settings, overridable through the environment like the connection settings above
+    private static final int poolSize = intSetting("PoolSize", 10);
+    private static final long borrowTimeoutMillis = intSetting("PoolBorrowTimeoutMs", 5000);
+    private static final long validationIdleMillis = intSetting("PoolValidationIdleMs", 30000);
+    private static final long maxLifetimeMillis = intSetting("PoolMaxLifetimeMs", 30 * 60 * 1000);
+    // 0 turns leak detection off, which also saves a stack trace on every borrow
+    private static final long leakThresholdMillis = intSetting("PoolLeakThresholdMs", 0);
+    // prepared statements kept per connection, 0 turns the cache off
+    private static final int statementCacheSize = intSetting("StatementCacheSize", 64);
+
+    // one pool shared by every ConnectionManager in the process
+    private static volatile ConnectionPool pool = null;
 
     private Connection con = null;
 
     public ConnectionManager() {
-        try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
+        getDataSource();
+    }
+
+    public static DataSource getDataSource() {
+        if (pool == null) {
+            synchronized (ConnectionManager.class) {
+                if (pool == null) {
+                    try {
+                        Class.forName(driverName);
+                    } catch (ClassNotFoundException e) {
+                        System.out.println(e.toString());
+                    }
+                    pool = new ConnectionPool(connectionUrl, userName, userPass, poolSize,
+                            borrowTimeoutMillis, validationIdleMillis, maxLifetimeMillis, leakThresholdMillis,
+                            statementCacheSize);
+                }
+            }
         }
+        return pool;
     }
 
     public Connection createConnection() {
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            // traced only while tracing is on, so there is no cost otherwise
+            con = QueryTracer.getInstance().wrap(getDataSource().getConnection());
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return con;
     }
 
+    // returns the connection to the pool
     public void closeConnection() {
+        if (this.con == null) {
+            return;
+        }
         try {
             this.con.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+
+    static int intSetting(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
 }
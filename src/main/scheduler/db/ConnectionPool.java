@@ -0,0 +1,583 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+import scheduler.metrics.Timer;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A fixed-size pool of physical connections to the database.
+ *
+ * At most {@code maxSize} connections are ever open. Borrowers wait up to the borrow timeout for a free
+ * connection, idle connections are validated before being handed out again, connections older than the
+ * max lifetime are retired, and connections held longer than the leak threshold are reported together with
+ * the stack trace of the borrower. Leak detection is off with a threshold of 0; the stack trace is only taken
+ * when it is on, since walking the stack on every borrow costs more than the pool saves.
+ *
+ * Every physical connection keeps its prepared statements by SQL text, up to {@code statementCacheSize} of
+ * them. Closing a statement prepared with {@code prepareStatement(sql)} only clears its parameters and puts
+ * its fetch size, query timeout, max rows and fetch direction back to what they were when it was created, so
+ * the next borrower that prepares the same SQL skips the parse on the server and the allocation on the client.
+ */
+public class ConnectionPool implements DataSource {
+
+    private final String connectionUrl;
+    private final String userName;
+    private final String userPass;
+
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long validationIdleMillis;
+    private final long maxLifetimeMillis;
+    private final long leakThresholdMillis;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    // most recently returned connections are at the head, so hot connections are reused first
+    private final LinkedBlockingDeque<PhysicalConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PhysicalConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String connectionUrl, String userName, String userPass, int maxSize,
+                          long borrowTimeoutMillis, long validationIdleMillis, long maxLifetimeMillis,
+                          long leakThresholdMillis, int statementCacheSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive!");
+        }
+        this.connectionUrl = connectionUrl;
+        this.userName = userName;
+        this.userPass = userPass;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationIdleMillis = validationIdleMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long checked = leakThresholdMillis > 0
+                ? Math.min(validationIdleMillis, leakThresholdMillis) : validationIdleMillis;
+        long period = Math.max(1000, checked / 2);
+        this.housekeeper.scheduleAtFixedRate(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        // waiting for a permit and opening or validating the connection both count as acquire time
+        Timer acquireTimer = Metrics.getInstance().timer("pool.acquire");
+        long start = acquireTimer.start();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            acquireTimer.stop(start, false);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        if (!acquired) {
+            acquireTimer.stop(start, false);
+            throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis
+                    + "ms waiting for a connection (pool size " + maxSize + ")");
+        }
+
+        try {
+            PhysicalConnection physical = takeIdleOrOpen();
+            physical.borrowedAt = System.currentTimeMillis();
+            physical.borrower = leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+            physical.leakReported = false;
+            borrowed.add(physical);
+            acquireTimer.stop(start, true);
+            return physical.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            acquireTimer.stop(start, false);
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections always use the configured credentials");
+    }
+
+    private PhysicalConnection takeIdleOrOpen() throws SQLException {
+        PhysicalConnection physical;
+        while ((physical = idle.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if (now - physical.createdAt >= maxLifetimeMillis) {
+                physical.closeQuietly();
+                continue;
+            }
+            if (now - physical.returnedAt >= validationIdleMillis && !physical.isValid()) {
+                physical.closeQuietly();
+                continue;
+            }
+            return physical;
+        }
+        return new PhysicalConnection(DriverManager.getConnection(connectionUrl, userName, userPass));
+    }
+
+    private void release(PhysicalConnection physical) {
+        borrowed.remove(physical);
+        physical.borrower = null;
+        try {
+            if (closed || !physical.reset()
+                    || System.currentTimeMillis() - physical.createdAt >= maxLifetimeMillis) {
+                physical.closeQuietly();
+            } else {
+                physical.returnedAt = System.currentTimeMillis();
+                idle.offerFirst(physical);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        // retire expired idle connections; the ones still in use are retired when they come back
+        for (PhysicalConnection physical : idle) {
+            if (now - physical.createdAt >= maxLifetimeMillis && idle.remove(physical)) {
+                physical.closeQuietly();
+            }
+        }
+        for (PhysicalConnection physical : borrowed) {
+            Throwable borrower = physical.borrower;
+            if (!physical.leakReported && borrower != null && now - physical.borrowedAt >= leakThresholdMillis) {
+                physical.leakReported = true;
+                System.out.println("Possible connection leak: connection held for "
+                        + (now - physical.borrowedAt) + "ms");
+                borrower.printStackTrace();
+            }
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PhysicalConnection physical;
+        while ((physical = idle.pollFirst()) != null) {
+            physical.closeQuietly();
+        }
+    }
+
+    // DataSource boilerplate
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return DriverManager.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        DriverManager.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    private class PhysicalConnection {
+        private final Connection connection;
+        private final long createdAt = System.currentTimeMillis();
+        private volatile long returnedAt = createdAt;
+        private volatile long borrowedAt;
+        private volatile Throwable borrower;
+        private volatile boolean leakReported;
+        // prepared statements by SQL text, least recently used first
+        private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+        private final Set<PreparedStatement> inUse = Collections.newSetFromMap(new IdentityHashMap<>());
+        // the settings every cached statement had when it was created, restored when it is given back
+        private final Map<PreparedStatement, StatementDefaults> defaults = new IdentityHashMap<>();
+
+        private PhysicalConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        // the cached statement for the SQL, or a new one if it is not cached or already in use by this borrower
+        private synchronized PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null && !inUse.contains(statement)) {
+                Metrics.getInstance().counter("pool.statementCache.hits").add(1);
+                inUse.add(statement);
+                return statement;
+            }
+            Metrics.getInstance().counter("pool.statementCache.misses").add(1);
+            PreparedStatement created = connection.prepareStatement(sql);
+            if (statement == null && statementCacheSize > 0) {
+                StatementDefaults initial;
+                try {
+                    initial = new StatementDefaults(created);
+                } catch (SQLException e) {
+                    closeQuietly(created);
+                    throw e;
+                }
+                statements.put(sql, created);
+                defaults.put(created, initial);
+                evict();
+            }
+            inUse.add(created);
+            return created;
+        }
+
+        // takes the statement back; it stays prepared if it is still cached
+        private synchronized void giveBack(String sql, PreparedStatement statement) {
+            inUse.remove(statement);
+            if (statements.get(sql) == statement) {
+                try {
+                    statement.clearParameters();
+                    statement.clearBatch();
+                    statement.clearWarnings();
+                    defaults.get(statement).restore(statement);
+                    return;
+                } catch (SQLException e) {
+                    statements.remove(sql);
+                }
+            }
+            defaults.remove(statement);
+            closeQuietly(statement);
+        }
+
+        private void evict() {
+            Iterator<PreparedStatement> eldest = statements.values().iterator();
+            while (statements.size() > statementCacheSize && eldest.hasNext()) {
+                PreparedStatement statement = eldest.next();
+                eldest.remove();
+                // one still in use is closed when it is given back
+                if (!inUse.contains(statement)) {
+                    defaults.remove(statement);
+                    closeQuietly(statement);
+                }
+            }
+        }
+
+        private boolean isValid() {
+            try {
+                return connection.isValid(2);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        // put the connection back into a clean state before the next borrower gets it
+        private boolean reset() {
+            try {
+                if (connection.isClosed()) {
+                    return false;
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                connection.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void closeQuietly() {
+            synchronized (this) {
+                for (PreparedStatement statement : statements.values()) {
+                    closeQuietly(statement);
+                }
+                statements.clear();
+                defaults.clear();
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // the connection is being discarded anyway
+            }
+        }
+
+        private void closeQuietly(Statement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // the statement is being discarded anyway
+            }
+        }
+
+        private Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Handle(this));
+        }
+    }
+
+    // The settings a borrower may change on a cached statement that would otherwise carry over to the next one
+    private static class StatementDefaults {
+        private final int fetchSize;
+        private final int queryTimeout;
+        private final int maxRows;
+        private final int fetchDirection;
+
+        private StatementDefaults(Statement statement) throws SQLException {
+            this.fetchSize = statement.getFetchSize();
+            this.queryTimeout = statement.getQueryTimeout();
+            this.maxRows = statement.getMaxRows();
+            this.fetchDirection = statement.getFetchDirection();
+        }
+
+        private void restore(Statement statement) throws SQLException {
+            if (statement.getFetchSize() != fetchSize) {
+                statement.setFetchSize(fetchSize);
+            }
+            if (statement.getQueryTimeout() != queryTimeout) {
+                statement.setQueryTimeout(queryTimeout);
+            }
+            if (statement.getMaxRows() != maxRows) {
+                statement.setMaxRows(maxRows);
+            }
+            if (statement.getFetchDirection() != fetchDirection) {
+                statement.setFetchDirection(fetchDirection);
+            }
+        }
+    }
+
+    // A statement from the cache of a physical connection. close() gives it back instead of closing it.
+    private static class CachedStatement implements InvocationHandler {
+        private final PhysicalConnection owner;
+        private final Handle handle;
+        private final Connection connection;
+        private final String sql;
+        private final PreparedStatement statement;
+        private boolean closed = false;
+
+        private CachedStatement(PhysicalConnection owner, Handle handle, Connection connection, String sql,
+                                PreparedStatement statement) {
+            this.owner = owner;
+            this.handle = handle;
+            this.connection = connection;
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        handle.forget((Statement) proxy);
+                        owner.giveBack(sql, statement);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + sql + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    // A statement the driver created outside the cache. close() closes it and drops it from its handle.
+    private static class TrackedStatement implements InvocationHandler {
+        private final Handle handle;
+        private final Connection connection;
+        private final Statement statement;
+
+        private TrackedStatement(Handle handle, Connection connection, Statement statement) {
+            this.handle = handle;
+            this.connection = connection;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    handle.forget((Statement) proxy);
+                    break;
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    // The Connection handed to callers. close() returns the physical connection to the pool and closes
+    // any statements the caller left open, instead of closing the socket.
+    private class Handle implements InvocationHandler {
+        private PhysicalConnection physical;
+        // the statements the caller has not closed yet
+        private final Set<Statement> statements = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private Handle(PhysicalConnection physical) {
+            this.physical = physical;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return physical == null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + (physical == null ? "closed" : physical.connection) + "]";
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (physical == null) {
+                throw new SQLException("Connection is closed");
+            }
+            if (name.equals("prepareStatement") && args.length == 1) {
+                PreparedStatement statement = physical.prepare((String) args[0]);
+                PreparedStatement cached = (PreparedStatement) Proxy.newProxyInstance(
+                        PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                        new CachedStatement(physical, this, (Connection) proxy, (String) args[0], statement));
+                statements.add(cached);
+                return cached;
+            }
+            try {
+                Object result = method.invoke(physical.connection, args);
+                if (result instanceof Statement) {
+                    // the proxy implements the declared return type, e.g. CallableStatement for prepareCall
+                    Statement tracked = (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                            new Class<?>[]{method.getReturnType()},
+                            new TrackedStatement(this, (Connection) proxy, (Statement) result));
+                    statements.add(tracked);
+                    return tracked;
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        // the caller closed the statement
+        private void forget(Statement statement) {
+            statements.remove(statement);
+        }
+
+        private void close() {
+            if (physical == null) {
+                return;
+            }
+            // closing a statement calls forget(), so close a copy
+            List<Statement> open = new ArrayList<>(statements);
+            statements.clear();
+            for (Statement statement : open) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // ignore, the statement is unusable either way
+                }
+            }
+            PhysicalConnection toRelease = physical;
+            physical = null;
+            release(toRelease);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out ids for a table using the hi-lo scheme: a block of {@code blockSize} ids is reserved at a time
+ * by bumping the table's row in IdBlocks, and ids inside the block are given out in memory without any
+ * locking. Blocks never overlap, even across processes, so inserts with these ids cannot collide.
+ * Ids of a block that is not used up (or of a rolled back insert) are simply skipped.
+ */
+public class IdAllocator {
+
+    private static final String RESERVE_BLOCK = "UPDATE IdBlocks SET NextValue = NextValue + ? " +
+            "OUTPUT DELETED.NextValue WHERE Name = ?";
+
+    private static final IdAllocator appointments = new IdAllocator("Appointments", "a_id",
+            ConnectionManager.intSetting("IdBlockSize", 50));
+
+    private final String table;
+    private final String keyColumn;
+    private final int blockSize;
+
+    private volatile Block current = new Block(0, 0);
+
+    public IdAllocator(String table, String keyColumn, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive!");
+        }
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.blockSize = blockSize;
+    }
+
+    public static IdAllocator forAppointments() {
+        return appointments;
+    }
+
+    public int nextId() throws SQLException {
+        while (true) {
+            Block block = current;
+            int id = block.next.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            refill(block);
+        }
+    }
+
+    // only the thread that finds the block exhausted talks to the database; the others wait for it here
+    private synchronized void refill(Block exhausted) throws SQLException {
+        if (current != exhausted) {
+            return;
+        }
+        int start = reserveBlock();
+        current = new Block(start, start + blockSize);
+    }
+
+    private int reserveBlock() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("Failed to connect to the database.");
+        }
+        try {
+            Integer start = tryReserveBlock(con);
+            if (start == null) {
+                // first use of this table: continue after the ids that are already in it
+                String seed = "INSERT INTO IdBlocks (Name, NextValue) SELECT ?, ISNULL(MAX(" + keyColumn + "), 0) + 1 " +
+                        "FROM " + table;
+                try (PreparedStatement statement = con.prepareStatement(seed)) {
+                    statement.setString(1, table);
+                    statement.executeUpdate();
+                } catch (SQLException e) {
+                    // another process seeded the row first, which is fine
+                }
+                start = tryReserveBlock(con);
+                if (start == null) {
+                    throw new SQLException("Could not reserve ids for " + table);
+                }
+            }
+            return start;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private Integer tryReserveBlock(Connection con) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(RESERVE_BLOCK)) {
+            statement.setInt(1, blockSize);
+            statement.setString(2, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt(1) : null;
+            }
+        }
+    }
+
+    private static class Block {
+        private final AtomicInteger next;
+        private final int end;
+
+        private Block(int start, int end) {
+            this.next = new AtomicInteger(start);
+            this.end = end;
+        }
+    }
+}
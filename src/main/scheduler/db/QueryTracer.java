@@ -0,0 +1,367 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Traces the statements sent to the database: SQL text, number of bound parameters, elapsed time, rows
+ * returned and the connection they ran on.
+ *
+ * While tracing is on, {@link ConnectionManager} hands out connections wrapped by {@link #wrap}. Statements
+ * slower than the slow-query threshold are written to the log, and so is every command (between
+ * {@link #begin} and {@link #end}) that made more round-trips than allowed, with the statements it ran, which
+ * usually means a query is being run once per row. Result sets read with getResultSet() are traced like the
+ * ones execute calls return, and every getMoreResults() counts as a round-trip of the statement that made
+ * them. While tracing is off connections are not wrapped at all.
+ *
+ * Settings come from the environment (TraceSql, SlowQueryMs, MaxRoundTrips, SlowQueryLog) and can be changed
+ * at runtime with the trace command.
+ */
+public class QueryTracer {
+
+    private static final QueryTracer instance = new QueryTracer();
+
+    private volatile boolean enabled = Boolean.parseBoolean(System.getenv("TraceSql"));
+    private volatile long slowQueryMillis = ConnectionManager.intSetting("SlowQueryMs", 200);
+    private volatile int maxRoundTrips = ConnectionManager.intSetting("MaxRoundTrips", 5);
+    private final Path logFile = Paths.get(System.getenv("SlowQueryLog") == null
+            ? "slow-queries.log" : System.getenv("SlowQueryLog"));
+
+    // what the command running on this thread has sent to the database so far
+    private final ThreadLocal<Scope> scope = new ThreadLocal<>();
+
+    private static class Scope {
+        private final String command;
+        private int roundTrips = 0;
+        private final Set<String> connections = new LinkedHashSet<>();
+        private final Map<String, Integer> statements = new LinkedHashMap<>();
+
+        private Scope(String command) {
+            this.command = command;
+        }
+    }
+
+    private QueryTracer() {
+    }
+
+    public static QueryTracer getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long getSlowQueryMillis() {
+        return slowQueryMillis;
+    }
+
+    public void setSlowQueryMillis(long slowQueryMillis) {
+        this.slowQueryMillis = slowQueryMillis;
+    }
+
+    public int getMaxRoundTrips() {
+        return maxRoundTrips;
+    }
+
+    public void setMaxRoundTrips(int maxRoundTrips) {
+        this.maxRoundTrips = maxRoundTrips;
+    }
+
+    public Path getLogFile() {
+        return logFile;
+    }
+
+    // marks the start of a command on this thread
+    public void begin(String command) {
+        if (enabled) {
+            scope.set(new Scope(command));
+        }
+    }
+
+    // marks the end of the command on this thread and reports it if it made too many round-trips
+    public void end() {
+        Scope current = scope.get();
+        if (current == null) {
+            return;
+        }
+        scope.remove();
+        if (current.roundTrips > maxRoundTrips) {
+            StringBuilder line = new StringBuilder();
+            line.append("ROUNDTRIPS command=").append(current.command)
+                    .append(" roundTrips=").append(current.roundTrips)
+                    .append(" connections=").append(current.connections.size());
+            for (Map.Entry<String, Integer> statement : current.statements.entrySet()) {
+                line.append("\n    ").append(statement.getValue()).append("x ").append(statement.getKey());
+            }
+            log(line.toString());
+        }
+    }
+
+    public Connection wrap(Connection connection) {
+        if (!enabled || connection == null) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new TracingConnection(connection));
+    }
+
+    private void record(String connectionId, String sql, int binds, long nanos, long rows) {
+        Metrics.getInstance().timer("jdbc.statement").record(nanos, true);
+        Scope current = scope.get();
+        String command = current == null ? "-" : current.command;
+        double millis = nanos / 1e6;
+        if (millis >= slowQueryMillis) {
+            log(String.format(Locale.ROOT, "SLOW %.1fms command=%s conn=%s binds=%d rows=%d sql=%s",
+                    millis, command, connectionId, binds, rows, sql));
+        }
+    }
+
+    private void countRoundTrip(String connectionId, String sql) {
+        Metrics.getInstance().counter("jdbc.roundTrips").add(1);
+        Scope current = scope.get();
+        if (current != null) {
+            current.roundTrips++;
+            current.connections.add(connectionId);
+            current.statements.merge(sql, 1, Integer::sum);
+        }
+    }
+
+    private synchronized void log(String line) {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(logFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), false, StandardCharsets.UTF_8)) {
+            out.println(LocalDateTime.now() + " " + line);
+        } catch (IOException e) {
+            // tracing must never break the command being traced
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class TracingConnection implements InvocationHandler {
+        private final Connection connection;
+        private final String id;
+        // queries whose result sets are still open; reported when they close or the connection does
+        private final List<TracingResultSet> open = new ArrayList<>();
+
+        private TracingConnection(Connection connection) {
+            this.connection = connection;
+            this.id = connection.toString();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                for (TracingResultSet resultSet : new ArrayList<>(open)) {
+                    resultSet.finish();
+                }
+            }
+            Object result = QueryTracer.invoke(connection, method, args);
+            if (result instanceof Statement) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                Class<?> type = result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+                return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{type},
+                        new TracingStatement(this, (Statement) result, sql));
+            }
+            return result;
+        }
+    }
+
+    private class TracingStatement implements InvocationHandler {
+        private final TracingConnection connection;
+        private final Statement statement;
+        private final String preparedSql;
+        private final BitSet bound = new BitSet();
+        private int batched = 0;
+        // what was executed last, for the results read with getResultSet() and getMoreResults()
+        private String executedSql = null;
+        private int executedBinds = 0;
+        // time spent on results whose result set has not been asked for yet
+        private long pending = 0;
+        // the result set of the current result, and the proxy handed out for it
+        private TracingResultSet current = null;
+        private Object currentProxy = null;
+
+        private TracingStatement(TracingConnection connection, Statement statement, String preparedSql) {
+            this.connection = connection;
+            this.statement = statement;
+            this.preparedSql = preparedSql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bound.set((Integer) args[0]);
+            } else if (name.equals("clearParameters")) {
+                bound.clear();
+            } else if (name.equals("addBatch")) {
+                batched++;
+            } else if (name.startsWith("execute")) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql;
+                countRoundTrip(connection.id, sql);
+                // executing closes the result set of the previous execution
+                finishCurrent();
+                long start = System.nanoTime();
+                Object result = QueryTracer.invoke(statement, method, args);
+                long elapsed = System.nanoTime() - start;
+                executedSql = sql;
+                executedBinds = bound.cardinality();
+                pending = 0;
+                if (result instanceof ResultSet) {
+                    return trace((ResultSet) result, elapsed);
+                }
+                if (Boolean.TRUE.equals(result)) {
+                    // execute() with a result set first: reported with its rows once it is read through getResultSet()
+                    pending = elapsed;
+                    batched = 0;
+                    return result;
+                }
+                long rows = 0;
+                if (result instanceof Integer || result instanceof Long) {
+                    rows = ((Number) result).longValue();
+                } else if (result instanceof int[]) {
+                    for (int count : (int[]) result) {
+                        rows += Math.max(count, 0);
+                    }
+                }
+                // a batch binds every parameter once per row
+                int binds = bound.cardinality() * Math.max(batched, 1);
+                batched = 0;
+                record(connection.id, sql, binds, elapsed, rows);
+                return result;
+            } else if (name.equals("getResultSet")) {
+                ResultSet resultSet = (ResultSet) QueryTracer.invoke(statement, method, args);
+                if (resultSet == null) {
+                    return null;
+                }
+                if (current != null && current.resultSet == resultSet) {
+                    return currentProxy;
+                }
+                long elapsed = pending;
+                pending = 0;
+                return trace(resultSet, elapsed);
+            } else if (name.equals("getMoreResults")) {
+                // every further result is another fetch from the server
+                countRoundTrip(connection.id, executedSql);
+                long start = System.nanoTime();
+                Object result = QueryTracer.invoke(statement, method, args);
+                long elapsed = System.nanoTime() - start;
+                boolean keepCurrent = args != null && args.length > 0
+                        && Integer.valueOf(Statement.KEEP_CURRENT_RESULT).equals(args[0]);
+                if (current != null && !keepCurrent) {
+                    // moving on closed the current result set
+                    current.elapsed += elapsed;
+                    finishCurrent();
+                } else {
+                    pending += elapsed;
+                }
+                if (!Boolean.TRUE.equals(result) && pending > 0) {
+                    record(connection.id, executedSql, executedBinds, pending, 0);
+                    pending = 0;
+                }
+                return result;
+            } else if (name.equals("close")) {
+                finishCurrent();
+            }
+            return QueryTracer.invoke(statement, method, args);
+        }
+
+        private Object trace(ResultSet resultSet, long elapsed) {
+            current = new TracingResultSet(connection, resultSet, executedSql, executedBinds, elapsed);
+            connection.open.add(current);
+            currentProxy = Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, current);
+            return currentProxy;
+        }
+
+        private void finishCurrent() {
+            if (current != null) {
+                current.finish();
+                current = null;
+                currentProxy = null;
+            }
+        }
+    }
+
+    private class TracingResultSet implements InvocationHandler {
+        private final TracingConnection connection;
+        private final ResultSet resultSet;
+        private final String sql;
+        private final int binds;
+        // time spent executing and fetching, not processing the rows in between
+        private long elapsed;
+        private long rows = 0;
+        private boolean finished = false;
+
+        private TracingResultSet(TracingConnection connection, ResultSet resultSet, String sql, int binds,
+                                 long elapsed) {
+            this.connection = connection;
+            this.resultSet = resultSet;
+            this.sql = sql;
+            this.binds = binds;
+            this.elapsed = elapsed;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                long start = System.nanoTime();
+                Object result = QueryTracer.invoke(resultSet, method, args);
+                elapsed += System.nanoTime() - start;
+                if (Boolean.TRUE.equals(result)) {
+                    rows++;
+                }
+                return result;
+            }
+            if (name.equals("close")) {
+                finish();
+            }
+            return QueryTracer.invoke(resultSet, method, args);
+        }
+
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                connection.open.remove(this);
+                record(connection.id, sql, binds, elapsed, rows);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a unit of work in one transaction on a pooled connection, and runs it again from the start when
+ * SQL Server rolled it back as a deadlock victim (error 1205), which is always safe to retry.
+ *
+ * A transaction is tried at most TxMaxAttempts times (default 4). Between attempts the connection is given
+ * back and the thread sleeps a random time up to TxBackoffMs (default 10) doubled per attempt, so the
+ * transactions that deadlocked do not meet again in lockstep. Retries also draw from a budget shared by the
+ * whole process that is refilled by successful transactions, so a database that deadlocks on everything
+ * gets each transaction once instead of several times.
+ */
+public class TransactionRunner {
+
+    // SQL Server's error number for "chosen as deadlock victim", and the SQL state it reports it with
+    private static final int DEADLOCK_VICTIM = 1205;
+    private static final String SERIALIZATION_FAILURE = "40001";
+
+    // the budget in thousandths of a retry: a retry costs 1000, a success earns 100
+    private static final long BUDGET_MAX = 100_000;
+    private static final long RETRY_COST = 1000;
+    private static final long SUCCESS_REFILL = 100;
+
+    private static final TransactionRunner instance = new TransactionRunner(
+            ConnectionManager.intSetting("TxMaxAttempts", 4), ConnectionManager.intSetting("TxBackoffMs", 10));
+
+    @FunctionalInterface
+    public interface Work<T> {
+        // runs on a connection that is not in auto-commit mode; rolling back itself is allowed
+        T run(Connection con) throws SQLException;
+    }
+
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private long budget = BUDGET_MAX;
+
+    public TransactionRunner(int maxAttempts, long backoffMillis) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Max attempts must be positive!");
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    public static TransactionRunner getInstance() {
+        return instance;
+    }
+
+    /**
+     * Runs the work and commits it. If it fails the transaction is rolled back; it is run again if the failure
+     * was a deadlock and both the attempts and the budget allow it, otherwise the failure is thrown.
+     */
+    public <T> T run(Work<T> work) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            if (con == null) {
+                throw new SQLException("Failed to connect to the database.");
+            }
+            try {
+                con.setAutoCommit(false);
+                T result = work.run(con);
+                con.commit();
+                succeeded();
+                return result;
+            } catch (SQLException e) {
+                rollbackQuietly(con);
+                if (!isDeadlock(e) || attempt >= maxAttempts) {
+                    throw e;
+                }
+                if (!takeRetry()) {
+                    Metrics.getInstance().counter("tx.retryBudgetExhausted").add(1);
+                    throw e;
+                }
+                Metrics.getInstance().counter("tx.retries").add(1);
+            } finally {
+                cm.closeConnection();
+            }
+            backoff(attempt);
+        }
+    }
+
+    public static boolean isDeadlock(SQLException e) {
+        for (SQLException next = e; next != null; next = next.getNextException()) {
+            if (next.getErrorCode() == DEADLOCK_VICTIM || SERIALIZATION_FAILURE.equals(next.getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void succeeded() {
+        budget = Math.min(BUDGET_MAX, budget + SUCCESS_REFILL);
+    }
+
+    // retries stop while less than half of the budget is left
+    private synchronized boolean takeRetry() {
+        if (budget - RETRY_COST < BUDGET_MAX / 2) {
+            return false;
+        }
+        budget -= RETRY_COST;
+        return true;
+    }
+
+    // full jitter: anywhere between 0 and the exponential bound
+    private void backoff(int attempt) throws SQLException {
+        long bound = backoffMillis << Math.min(attempt - 1, 10);
+        if (bound <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry the transaction", e);
+        }
+    }
+
+    private static void rollbackQuietly(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            // the pool rolls back again when the connection is returned
+        }
+    }
+}
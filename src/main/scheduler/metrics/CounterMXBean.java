@@ -0,0 +1,8 @@
+package scheduler.metrics;
+
+public interface CounterMXBean {
+
+    long getCount();
+
+    void reset();
+}
@@ -0,0 +1,117 @@
+package scheduler.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timers and counters of the process, by name: "command.&lt;name&gt;" for every command a session runs,
+ * "storage.&lt;method&gt;" for every storage engine call and "pool.acquire" for borrowing a connection.
+ *
+ * Every timer and counter is also registered as an MXBean under "scheduler:type=Timer" or
+ * "scheduler:type=Counter", and the whole set can be appended to a file periodically.
+ */
+public class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    // ConcurrentHashMap runs computeIfAbsent once per name, so every name is registered with JMX once
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dumper = null;
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    public Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(name, n -> register(new Timer(), "Timer", n));
+        }
+        return timer;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, n -> register(new Counter(), "Counter", n));
+        }
+        return counter;
+    }
+
+    private static <T> T register(T bean, String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(bean, new ObjectName("scheduler:type=" + type + ",name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            // still usable through the stats command
+        }
+        return bean;
+    }
+
+    public void print(PrintStream out) {
+        out.printf("%-36s %10s %8s %10s %10s %10s %10s %10s%n",
+                "timer", "count", "failed", "mean(ms)", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            Timer t = entry.getValue();
+            out.printf(Locale.ROOT, "%-36s %10d %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                    entry.getKey(), t.getCount(), t.getFailures(), t.getMeanMillis(),
+                    t.getP50Millis(), t.getP99Millis(), t.getP999Millis(), t.getMaxMillis());
+        }
+        if (!counters.isEmpty()) {
+            out.printf("%-36s %10s%n", "counter", "count");
+            for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+                out.printf("%-36s %10d%n", entry.getKey(), entry.getValue().getCount());
+            }
+        }
+    }
+
+    public void reset() {
+        for (Timer timer : timers.values()) {
+            timer.reset();
+        }
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+    }
+
+    // appends everything to the file every periodSeconds
+    public synchronized void startDump(long periodSeconds, Path file) {
+        if (dumper != null || periodSeconds <= 0) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), false, StandardCharsets.UTF_8)) {
+                out.println("=== " + LocalDateTime.now());
+                print(out);
+            } catch (IOException e) {
+                // try again next time
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+}
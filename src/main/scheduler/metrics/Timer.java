@@ -0,0 +1,71 @@
+package scheduler.metrics;
+
+import scheduler.util.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of one operation, with how many of the calls failed. Recording is lock-free.
+ */
+public class Timer implements TimerMXBean {
+
+    private final Histogram latencies = new Histogram();
+    private final LongAdder failures = new LongAdder();
+
+    public void record(long nanos, boolean succeeded) {
+        latencies.record(nanos);
+        if (!succeeded) {
+            failures.increment();
+        }
+    }
+
+    // returns the start time to hand to stop(), so callers do not read the clock themselves
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void stop(long start, boolean succeeded) {
+        record(System.nanoTime() - start, succeeded);
+    }
+
+    @Override
+    public long getCount() {
+        return latencies.getCount();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latencies.getMean() / 1e6;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latencies.getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latencies.getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return latencies.getPercentile(99.9) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latencies.getMax() / 1e6;
+    }
+
+    @Override
+    public void reset() {
+        latencies.reset();
+        failures.reset();
+    }
+}
@@ -0,0 +1,21 @@
+package scheduler.metrics;
+
+// what JMX shows of a Timer; times are in milliseconds
+public interface TimerMXBean {
+
+    long getCount();
+
+    long getFailures();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    void reset();
+}
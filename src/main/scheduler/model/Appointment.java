@@ -0,0 +1,40 @@
+package scheduler.model;
+
+import java.sql.Date;
+
+public class Appointment {
+    private final int id;
+    private final Date date;
+    private final String patientUsername;
+    private final String caregiverUsername;
+    private final String vaccineName;
+
+    public Appointment(int id, Date date, String patientUsername, String caregiverUsername, String vaccineName) {
+        this.id = id;
+        this.date = date;
+        this.patientUsername = patientUsername;
+        this.caregiverUsername = caregiverUsername;
+        this.vaccineName = vaccineName;
+    }
+
+    // Getters
+    public int getId() {
+        return id;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getPatientUsername() {
+        return patientUsername;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+}
@@ -0,0 +1,23 @@
+package scheduler.model;
+
+import java.sql.Date;
+
+// a caregiver being free on a date
+public class Availability {
+    private final Date date;
+    private final String caregiverUsername;
+
+    public Availability(Date date, String caregiverUsername) {
+        this.date = date;
+        this.caregiverUsername = caregiverUsername;
+    }
+
+    // Getters
+    public Date getDate() {
+        return date;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+}
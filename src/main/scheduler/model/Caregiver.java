@@ -1,10 +1,17 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.cache.AvailabilityIndex;
+import scheduler.cache.UsernameRegistry;
+import scheduler.service.Waitlist;
+import scheduler.storage.Credentials;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+import scheduler.util.HashingService;
 import scheduler.util.Util;
 
-import java.sql.*;
-import java.util.Arrays;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.List;
 
 public class Caregiver {
     private final String username;
@@ -37,38 +44,25 @@ public class Caregiver {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        StorageEngines.get().addUser(StorageEngine.Role.CAREGIVER, this.username, this.salt, this.hash);
+        UsernameRegistry.caregivers().register(this.username);
     }
 
     public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        StorageEngines.get().addAvailability(d, this.username);
+        AvailabilityIndex.getInstance().add(d, this.username);
+        Waitlist.getInstance().availabilityAdded(d);
+    }
+
+    // Uploads availability for all the dates in one batched transaction. Dates that were already uploaded
+    // are skipped instead of failing the upload; returns how many dates were newly added.
+    public int uploadAvailability(List<Date> dates) throws SQLException {
+        int added = StorageEngines.get().addAvailabilities(this.username, dates);
+        for (Date d : dates) {
+            AvailabilityIndex.getInstance().add(d, this.username);
+            Waitlist.getInstance().availabilityAdded(d);
         }
+        return added;
     }
 
     public static class CaregiverBuilder {
@@ -99,35 +93,21 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
-                }
+            Credentials credentials = StorageEngines.get().getCredentials(StorageEngine.Role.CAREGIVER, this.username);
+            if (credentials == null) {
+                return null;
+            }
+            byte[] salt = credentials.getSalt();
+            // we need to call Util.trim() to get rid of the paddings,
+            // try to remove the use of Util.trim() and you'll see :)
+            byte[] hash = Util.trim(credentials.getHash());
+            // check if the password matches; no connection is held while we hash
+            if (!HashingService.getInstance().matches(password, salt, hash)) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
             }
+            this.salt = salt;
+            this.hash = hash;
+            return new Caregiver(this);
         }
     }
 }
@@ -0,0 +1,29 @@
+package scheduler.model;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// the caregivers free on each date of a range, and the vaccine stock at the time of the search
+public class CaregiverSchedule {
+    private final NavigableMap<LocalDate, List<String>> caregivers = new TreeMap<>();
+    private final List<VaccineStock> vaccines;
+
+    // caregivers holds only the dates on which someone is free, each list sorted by username
+    public CaregiverSchedule(NavigableMap<LocalDate, List<String>> caregivers, List<VaccineStock> vaccines) {
+        this.caregivers.putAll(caregivers);
+        this.vaccines = vaccines;
+    }
+
+    // Getters
+    public List<String> getCaregivers(Date date) {
+        return caregivers.getOrDefault(date.toLocalDate(), Collections.emptyList());
+    }
+
+    public List<VaccineStock> getVaccines() {
+        return vaccines;
+    }
+}
@@ -0,0 +1,61 @@
+package scheduler.model;
+
+import java.sql.Date;
+
+public class ReservationResult {
+
+    public enum Status {
+        BOOKED,
+        NO_CAREGIVER,
+        NO_DOSES
+    }
+
+    private final Status status;
+    private final int appointmentId;
+    private final Date date;
+    private final String caregiverUsername;
+    private final String vaccineName;
+
+    private ReservationResult(Status status, int appointmentId, Date date, String caregiverUsername,
+                              String vaccineName) {
+        this.status = status;
+        this.appointmentId = appointmentId;
+        this.date = date;
+        this.caregiverUsername = caregiverUsername;
+        this.vaccineName = vaccineName;
+    }
+
+    public static ReservationResult booked(int appointmentId, Date date, String caregiverUsername,
+                                           String vaccineName) {
+        return new ReservationResult(Status.BOOKED, appointmentId, date, caregiverUsername, vaccineName);
+    }
+
+    public static ReservationResult failed(Status status) {
+        return new ReservationResult(status, 0, null, null, null);
+    }
+
+    // Getters
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isBooked() {
+        return status == Status.BOOKED;
+    }
+
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+}
@@ -1,10 +1,9 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.cache.VaccineStockCache;
+import scheduler.service.Waitlist;
+import scheduler.storage.StorageEngines;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
 public class Vaccine {
@@ -31,65 +30,31 @@ public class Vaccine {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
-            statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        StorageEngines.get().addVaccine(this.vaccineName, this.availableDoses);
+        VaccineStockCache.getInstance().add(this.vaccineName, this.availableDoses);
+        Waitlist.getInstance().dosesAdded(this.vaccineName);
     }
 
-    // Increment the available doses
+    // Increment the available doses; written as a relative change, so concurrent reservations are not lost
     public void increaseAvailableDoses(int num) throws SQLException {
         if (num <= 0) {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
-        this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        if (!StorageEngines.get().addDoses(this.vaccineName, num)) {
+            throw new SQLException("Vaccine not found: " + this.vaccineName);
         }
+        this.availableDoses += num;
+        VaccineStockCache.getInstance().add(this.vaccineName, num);
+        Waitlist.getInstance().dosesAdded(this.vaccineName);
     }
 
     // Decrement the available doses
     public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
+        if (!StorageEngines.get().addDoses(this.vaccineName, -num)) {
             throw new IllegalArgumentException("Not enough available doses!");
         }
         this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        VaccineStockCache.getInstance().add(this.vaccineName, -num);
     }
 
     @Override
@@ -123,24 +88,14 @@ public class Vaccine {
         }
 
         public Vaccine get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
-                statement.setString(1, this.vaccineName);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    this.availableDoses = resultSet.getInt("Doses");
-                    return new Vaccine(this);
-                }
+            VaccineStockCache cache = VaccineStockCache.getInstance();
+            VaccineStock stock = cache.isReady() ? cache.get(this.vaccineName)
+                    : StorageEngines.get().getVaccineStock(this.vaccineName);
+            if (stock == null) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
             }
+            this.availableDoses = stock.getDoses();
+            return new Vaccine(this);
         }
     }
 }
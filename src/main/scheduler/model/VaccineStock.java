@@ -0,0 +1,21 @@
+package scheduler.model;
+
+// the doses of a vaccine in stock at the time it was read
+public class VaccineStock {
+    private final String name;
+    private final int doses;
+
+    public VaccineStock(String name, int doses) {
+        this.name = name;
+        this.doses = doses;
+    }
+
+    // Getters
+    public String getName() {
+        return name;
+    }
+
+    public int getDoses() {
+        return doses;
+    }
+}
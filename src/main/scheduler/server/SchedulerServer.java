@@ -0,0 +1,81 @@
+package scheduler.server;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the scheduler's command protocol over TCP: every connection gets its own {@link Session} and
+ * sends one command per line, exactly as it would be typed into the console.
+ *
+ * Usage: SchedulerServer [port]   (default 5555)
+ */
+public class SchedulerServer {
+
+    private static final int DEFAULT_PORT = 5555;
+
+    private final int port;
+    private final ExecutorService sessions = newSessionExecutor();
+
+    public SchedulerServer(int port) {
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Scheduler.init();
+        new SchedulerServer(port).serve();
+    }
+
+    public void serve() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Scheduler listening on port " + serverSocket.getLocalPort());
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> handle(socket));
+            }
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(s.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            Session session = new Session(out);
+            Scheduler.printWelcome(out);
+            while (true) {
+                out.print("> ");
+                out.flush();
+                if (!Scheduler.execute(session, in.readLine())) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the terminal went away; its session goes with it
+        }
+    }
+
+    // one virtual thread per session when the runtime has them (Java 21+), otherwise one platform thread each
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "scheduler-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
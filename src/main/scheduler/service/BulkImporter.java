@@ -0,0 +1,272 @@
+package scheduler.service;
+
+import scheduler.cache.AvailabilityIndex;
+import scheduler.cache.UsernameRegistry;
+import scheduler.cache.VaccineStockCache;
+import scheduler.storage.ImportKind;
+import scheduler.storage.StorageEngines;
+import scheduler.util.HashingService;
+import scheduler.util.Util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Loads patients, caregivers, vaccines or availability from a CSV file.
+ *
+ * The file is read {@code batchSize} lines at a time, so memory use does not depend on its size. Passwords of a
+ * batch are hashed in parallel on the {@link HashingService}, then the batch is handed to the storage engine,
+ * which writes it with one JDBC batch and commits it on its own. Lines that cannot be imported are copied to
+ * {@code <file>.rejects.csv} with the reason appended; the passwords of patients and caregivers are left out.
+ *
+ * The file is named by the client but read on the server, so it must be inside the import directory (ImportDir
+ * in the environment, "imports" by default), see {@link #resolve}.
+ *
+ * Expected columns (no quoting, an optional header line is skipped):
+ * patients / caregivers: username,password
+ * vaccines: name,doses (added to the existing stock)
+ * availability: date,caregiver_username
+ */
+public class BulkImporter {
+
+    public static class Result {
+        private int imported = 0;
+        private int rejected = 0;
+        private Path rejectsFile = null;
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        // null if every line was imported
+        public Path getRejectsFile() {
+            return rejectsFile;
+        }
+    }
+
+    private static final Path importDir = Paths.get(System.getenv("ImportDir") == null
+            ? "imports" : System.getenv("ImportDir"));
+
+    private final ImportKind kind;
+    private final int batchSize;
+
+    public BulkImporter(ImportKind kind, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        this.kind = kind;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The file of the given name in the import directory. The name must be relative and may not leave the
+     * directory, neither with ".." nor through a symbolic link; otherwise IllegalArgumentException is thrown.
+     */
+    public static Path resolve(String name) throws IOException {
+        Path relative = Paths.get(name);
+        if (relative.isAbsolute() || relative.getRoot() != null) {
+            throw new IllegalArgumentException("Import files must be relative to " + importDir);
+        }
+        for (Path part : relative) {
+            if (part.toString().equals("..")) {
+                throw new IllegalArgumentException("Import files must be inside " + importDir);
+            }
+        }
+        Path dir = importDir.toRealPath();
+        Path file = dir.resolve(relative.normalize()).toRealPath();
+        if (!file.startsWith(dir) || file.equals(dir)) {
+            throw new IllegalArgumentException("Import files must be inside " + importDir);
+        }
+        return file;
+    }
+
+    public Result importFile(Path file) throws IOException, SQLException {
+        Path rejectsPath = file.resolveSibling(file.getFileName() + ".rejects.csv");
+        Result result = new Result();
+        BufferedWriter rejects = null;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<String> lines = new ArrayList<>(batchSize);
+            List<String> failed = new ArrayList<>();
+            boolean first = true;
+            String line;
+            while (true) {
+                line = reader.readLine();
+                if (line != null) {
+                    if (first && line.split(",")[0].trim().equalsIgnoreCase(kind.getHeaderColumn())) {
+                        first = false;
+                        continue;
+                    }
+                    first = false;
+                    if (!line.trim().isEmpty()) {
+                        lines.add(line);
+                    }
+                }
+                if (lines.size() == batchSize || (line == null && !lines.isEmpty())) {
+                    result.imported += writeBatch(lines, failed);
+                    lines.clear();
+                }
+                if (!failed.isEmpty()) {
+                    if (rejects == null) {
+                        rejects = Files.newBufferedWriter(rejectsPath, StandardCharsets.UTF_8);
+                        result.rejectsFile = rejectsPath;
+                    }
+                    for (String rejected : failed) {
+                        rejects.write(rejected);
+                        rejects.newLine();
+                    }
+                    result.rejected += failed.size();
+                    failed.clear();
+                }
+                if (line == null) {
+                    return result;
+                }
+            }
+        } finally {
+            if (rejects != null) {
+                rejects.close();
+            }
+        }
+    }
+
+    // writes and commits one batch; lines that could not be written are added to failed with the reason
+    private int writeBatch(List<String> lines, List<String> failed) throws SQLException {
+        List<CompletableFuture<Object[]>> rows = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            rows.add(parse(line));
+        }
+
+        List<String> batched = new ArrayList<>(lines.size());
+        List<Object[]> batchedRows = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            try {
+                batchedRows.add(rows.get(i).get());
+                batched.add(lines.get(i));
+            } catch (ExecutionException e) {
+                failed.add(reject(lines.get(i), e.getCause() instanceof IllegalArgumentException
+                        ? e.getCause().getMessage() : "could not hash password"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Import interrupted", e);
+            }
+        }
+        if (batched.isEmpty()) {
+            return 0;
+        }
+
+        int[] written;
+        try {
+            written = StorageEngines.get().importBatch(kind, batchedRows);
+        } catch (BatchUpdateException e) {
+            // nothing of this batch was committed
+            for (String line : batched) {
+                failed.add(reject(line, "batch failed: " + e.getMessage()));
+            }
+            return 0;
+        }
+
+        int imported = 0;
+        for (int i = 0; i < written.length; i++) {
+            if (written[i] == 1) {
+                imported++;
+                if (kind == ImportKind.AVAILABILITY) {
+                    AvailabilityIndex.getInstance().add((Date) batchedRows.get(i)[0], (String) batchedRows.get(i)[1]);
+                    Waitlist.getInstance().availabilityAdded((Date) batchedRows.get(i)[0]);
+                } else if (kind == ImportKind.VACCINES) {
+                    VaccineStockCache.getInstance().add((String) batchedRows.get(i)[0], (Integer) batchedRows.get(i)[1]);
+                    Waitlist.getInstance().dosesAdded((String) batchedRows.get(i)[0]);
+                } else if (kind == ImportKind.PATIENTS) {
+                    UsernameRegistry.patients().register((String) batchedRows.get(i)[0]);
+                } else if (kind == ImportKind.CAREGIVERS) {
+                    UsernameRegistry.caregivers().register((String) batchedRows.get(i)[0]);
+                }
+            } else {
+                failed.add(reject(batched.get(i), kind.getSkippedReason()));
+            }
+        }
+        return imported;
+    }
+
+    // the line as copied to the rejects file, with the reason appended; the password of a user is left out
+    private String reject(String line, String reason) {
+        if (kind == ImportKind.PATIENTS || kind == ImportKind.CAREGIVERS) {
+            // without a comma there is no telling the username from the password, so neither is kept
+            int comma = line.indexOf(',');
+            line = (comma < 0 ? "" : line.substring(0, comma)) + ",";
+        }
+        return line + "," + reason;
+    }
+
+    // turns a CSV line into a row as laid out in ImportKind; passwords of users are hashed on the hashing service
+    // so the lines of a batch are hashed in parallel
+    private CompletableFuture<Object[]> parse(String line) {
+        Object[] row;
+        try {
+            row = parseFields(line);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (kind == ImportKind.PATIENTS || kind == ImportKind.CAREGIVERS) {
+            return HashingService.getInstance().hashAsync((String) row[2], (byte[]) row[1]).thenApply(hash -> {
+                row[2] = hash;
+                return row;
+            });
+        }
+        return CompletableFuture.completedFuture(row);
+    }
+
+    private Object[] parseFields(String line) {
+        String[] fields = line.split(",", -1);
+        if (fields.length != 2) {
+            throw new IllegalArgumentException("expected 2 columns");
+        }
+        String first = fields[0].trim();
+        String second = fields[1].trim();
+        if (first.isEmpty() || second.isEmpty()) {
+            throw new IllegalArgumentException("empty column");
+        }
+        switch (kind) {
+            case PATIENTS:
+            case CAREGIVERS:
+                // the hash is filled in by parse()
+                return new Object[]{first, Util.generateSalt(), second};
+            case VACCINES:
+                int doses;
+                try {
+                    doses = Integer.parseInt(second);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid number of doses");
+                }
+                if (doses < 0) {
+                    throw new IllegalArgumentException("invalid number of doses");
+                }
+                return new Object[]{first, doses};
+            case AVAILABILITY:
+                Date date;
+                try {
+                    date = Date.valueOf(first);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("invalid date");
+                }
+                return new Object[]{date, second};
+            default:
+                throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package scheduler.service;
+
+import scheduler.cache.AppointmentViewCache;
+import scheduler.cache.AvailabilityIndex;
+import scheduler.cache.VaccineStockCache;
+import scheduler.model.Appointment;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class CancellationService {
+
+    // most appointments one cancel_many takes
+    public static final int MAX_BATCH = 1000;
+
+    /**
+     * Cancels those of the appointments that belong to the patient or caregiver in one transaction, then gives
+     * their caregivers and doses back to the caches and lets the waitlist book the freed slots.
+     */
+    public static List<Appointment> cancel(StorageEngine.Role role, String username, Collection<Integer> appointmentIds)
+            throws SQLException {
+        List<Appointment> cancelled = StorageEngines.get().cancelAppointments(role, username, appointmentIds);
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        Set<Date> freed = new TreeSet<>();
+        for (Appointment appointment : cancelled) {
+            index.add(appointment.getDate(), appointment.getCaregiverUsername());
+            index.unbooked(appointment.getCaregiverUsername());
+            AppointmentViewCache.getInstance().removed(appointment);
+            freed.add(appointment.getDate());
+        }
+        restock(cancelled);
+        for (Date date : freed) {
+            Waitlist.getInstance().availabilityAdded(date);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Cancels every appointment of the caregiver on the date, e.g. for a sick day, and takes the caregiver's
+     * availability for it away so nobody books them again.
+     */
+    public static List<Appointment> cancelDay(String caregiverUsername, Date date) throws SQLException {
+        List<Appointment> cancelled = StorageEngines.get().cancelDay(caregiverUsername, date);
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        index.remove(date, caregiverUsername);
+        for (Appointment appointment : cancelled) {
+            index.unbooked(appointment.getCaregiverUsername());
+            AppointmentViewCache.getInstance().removed(appointment);
+        }
+        restock(cancelled);
+        return cancelled;
+    }
+
+    // the storage engine already put the doses back; do the same in the stock cache
+    private static void restock(List<Appointment> cancelled) {
+        Map<String, Integer> doses = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Appointment appointment : cancelled) {
+            doses.merge(appointment.getVaccineName(), 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> vaccine : doses.entrySet()) {
+            VaccineStockCache.getInstance().add(vaccine.getKey(), vaccine.getValue());
+            Waitlist.getInstance().dosesAdded(vaccine.getKey());
+        }
+    }
+}
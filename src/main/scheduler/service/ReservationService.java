@@ -0,0 +1,120 @@
+package scheduler.service;
+
+import scheduler.cache.AppointmentViewCache;
+import scheduler.cache.AvailabilityIndex;
+import scheduler.cache.VaccineStockCache;
+import scheduler.metrics.Metrics;
+import scheduler.model.Appointment;
+import scheduler.model.ReservationResult;
+import scheduler.storage.StorageEngines;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Map;
+
+public class ReservationService {
+
+    /**
+     * Books one dose of the vaccine for the patient on the given date, all in one transaction:
+     * the caregiver's availability is claimed, the dose is taken with a conditional decrement and the
+     * appointment is inserted, or nothing happens at all.
+     */
+    public static ReservationResult reserve(String patientUsername, Date date, String vaccineName)
+            throws SQLException {
+        return book(patientUsername, date, false, vaccineName);
+    }
+
+    /**
+     * Like {@link #reserve}, but books the earliest date on or after {@code from} that has a free caregiver.
+     */
+    public static ReservationResult reserveEarliest(String patientUsername, Date from, String vaccineName)
+            throws SQLException {
+        return book(patientUsername, from, true, vaccineName);
+    }
+
+    private static ReservationResult book(String patientUsername, Date date, boolean orLater, String vaccineName)
+            throws SQLException {
+        // out of stock: don't claim a caregiver only to give it back; the cache can be behind, so it is confirmed
+        VaccineStockCache stock = VaccineStockCache.getInstance();
+        if (stock.isReady() && !stock.hasDoses(vaccineName) && !stock.confirmDoses(vaccineName)) {
+            return ReservationResult.failed(ReservationResult.Status.NO_DOSES);
+        }
+
+        // pick the caregiver from memory first, so the database mostly only has to confirm the pick
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        Date claimedDate = null;
+        String claimed = null;
+        if (index.isReady()) {
+            if (orLater) {
+                Map.Entry<Date, String> earliest = index.claimEarliest(date, patientUsername);
+                if (earliest != null) {
+                    claimedDate = earliest.getKey();
+                    claimed = earliest.getValue();
+                }
+            } else {
+                claimedDate = date;
+                claimed = index.claim(date, patientUsername);
+            }
+            // the index can be behind the database, so a miss lets the storage engine pick instead
+            if (claimed == null) {
+                Metrics.getInstance().counter("cache.availability.misses").add(1);
+            }
+        }
+
+        boolean cachedDoses = stock.isReady() && stock.hasDoses(vaccineName);
+        ReservationResult result = null;
+        try {
+            result = StorageEngines.get().reserve(patientUsername, vaccineName, date, orLater, claimedDate, claimed);
+            return result;
+        } finally {
+            if (result != null && result.isBooked()) {
+                stock.add(vaccineName, -1);
+                index.booked(result.getCaregiverUsername());
+                AppointmentViewCache.getInstance().added(new Appointment(result.getAppointmentId(), result.getDate(),
+                        patientUsername, result.getCaregiverUsername(), result.getVaccineName()));
+                // the index missed or was stale and the storage engine picked someone else
+                if (!booked(result, claimedDate, claimed)) {
+                    index.remove(result.getDate(), result.getCaregiverUsername());
+                }
+            }
+            if (cachedDoses && result != null && result.getStatus() == ReservationResult.Status.NO_DOSES) {
+                // the cache had doses the storage engine did not, so search and the next reservation would trust it
+                resync(stock, vaccineName);
+            }
+            if (claimed != null && !booked(result, claimedDate, claimed)) {
+                if (result != null && (result.isBooked() || result.getStatus() == ReservationResult.Status.NO_CAREGIVER)) {
+                    // the storage engine could not claim our pick
+                    recheck(index, claimedDate, claimed);
+                } else {
+                    // nothing was booked for another reason, so the caregiver we took from the index is free again
+                    index.add(claimedDate, claimed);
+                }
+            }
+        }
+    }
+
+    private static boolean booked(ReservationResult result, Date date, String caregiver) {
+        return result != null && result.isBooked() && result.getCaregiverUsername().equalsIgnoreCase(caregiver)
+                && result.getDate().equals(date);
+    }
+
+    private static void resync(VaccineStockCache stock, String vaccineName) {
+        try {
+            stock.resync(vaccineName);
+        } catch (SQLException e) {
+            // the next reload of the cache corrects it
+        }
+    }
+
+    // The storage engine did not book the caregiver picked from the index. The pick is usually stale, but the
+    // claim skips rows another transaction has locked, so it is put back if the database still has it free.
+    private static void recheck(AvailabilityIndex index, Date date, String caregiver) {
+        try {
+            if (StorageEngines.get().getAvailableCaregivers(date).contains(caregiver)) {
+                index.add(date, caregiver);
+            }
+        } catch (SQLException e) {
+            // the next reload of the index puts it back
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package scheduler.service;
+
+import scheduler.metrics.Metrics;
+import scheduler.model.ReservationResult;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Patients waiting for a date (or any date of a range) on which no caregiver or dose was free.
+ *
+ * Every date has its own queue, served first come first served; a request for a range waits in the queue of
+ * every date of the range until one of them books it. Whenever capacity is freed (availability uploaded or
+ * imported, an appointment cancelled, doses added) the date is marked and a single matcher thread books the
+ * waiting patients through {@link ReservationService#reserve}, {@value #BATCH_SIZE} at a time, until the date
+ * runs out of caregivers. The command that freed the capacity never waits for the matcher. Capacity freed by
+ * other processes is reported by the reloads of the availability index and the vaccine stock cache.
+ *
+ * The dates every vaccine is waited for on are kept, so added doses only wake those dates. Dates that have
+ * passed are dropped by the matcher, and so are dates nobody waits on any more.
+ */
+public class Waitlist {
+
+    private static final Waitlist instance = new Waitlist();
+
+    // requests taken off a date's queue at once
+    private static final int BATCH_SIZE = 32;
+
+    private static class Entry implements Comparable<Entry> {
+        private final long sequence;
+        private final String patientUsername;
+        private final String vaccineName;
+        // set once the request is booked on any of its dates, so the other queues drop it
+        private final AtomicBoolean booked = new AtomicBoolean();
+
+        private Entry(long sequence, String patientUsername, String vaccineName) {
+            this.sequence = sequence;
+            this.patientUsername = patientUsername;
+            this.vaccineName = vaccineName;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Date, PriorityBlockingQueue<Entry>> queues = new ConcurrentHashMap<>();
+    // vaccine name in lower case -> dates someone waits on for it
+    private final Map<String, Set<Date>> datesByVaccine = new ConcurrentHashMap<>();
+    // dates whose capacity changed since the matcher last looked at them
+    private final Set<Date> freed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ExecutorService matcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "waitlist-matcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Waitlist() {
+    }
+
+    public static Waitlist getInstance() {
+        return instance;
+    }
+
+    /**
+     * Puts the patient on the waitlist of every date in the list and tries to book one of them right away.
+     * Returns the number of requests that were ahead of the patient on the first date.
+     */
+    public int add(String patientUsername, List<Date> dates, String vaccineName) {
+        Entry entry = new Entry(sequence.incrementAndGet(), patientUsername, vaccineName);
+        int[] ahead = {-1};
+        Set<Date> waitedOn = datesByVaccine.computeIfAbsent(vaccineKey(vaccineName),
+                v -> ConcurrentHashMap.newKeySet());
+        for (Date date : dates) {
+            // atomic with the matcher dropping the date once nobody waits on it
+            queues.compute(date, (d, queue) -> {
+                if (queue == null) {
+                    queue = new PriorityBlockingQueue<>();
+                }
+                if (ahead[0] < 0) {
+                    ahead[0] = (int) queue.stream().filter(waiting -> !waiting.booked.get()).count();
+                }
+                queue.add(entry);
+                waitedOn.add(d);
+                return queue;
+            });
+        }
+        freed.addAll(dates);
+        schedule();
+        return Math.max(ahead[0], 0);
+    }
+
+    // number of requests still waiting, over all dates
+    public int size() {
+        Set<Entry> waiting = new HashSet<>();
+        for (PriorityBlockingQueue<Entry> queue : queues.values()) {
+            for (Entry entry : queue) {
+                if (!entry.booked.get()) {
+                    waiting.add(entry);
+                }
+            }
+        }
+        return waiting.size();
+    }
+
+    // a caregiver became free on the date
+    public void availabilityAdded(Date date) {
+        if (queues.containsKey(date)) {
+            freed.add(date);
+            schedule();
+        }
+    }
+
+    // doses of the vaccine were added, which may unblock any date someone waits on for it
+    public void dosesAdded(String vaccineName) {
+        Set<Date> dates = datesByVaccine.get(vaccineKey(vaccineName));
+        if (dates != null && !dates.isEmpty()) {
+            freed.addAll(dates);
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            matcher.execute(this::matchFreed);
+        }
+    }
+
+    private void matchFreed() {
+        // events arriving from now on schedule another run
+        scheduled.set(false);
+        dropPast();
+        // earliest dates first
+        Set<Date> dates = new TreeSet<>();
+        for (Date date : freed) {
+            if (freed.remove(date)) {
+                dates.add(date);
+            }
+        }
+        // vaccines the storage engine had no doses of in this run; their patients are not tried again until
+        // doses are added, which schedules another run
+        Set<String> outOfStock = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (Date date : dates) {
+            match(date, outOfStock);
+            queues.computeIfPresent(date, (d, queue) -> queue.isEmpty() ? forget(d) : queue);
+        }
+    }
+
+    // nobody can be booked on a date that has passed
+    private void dropPast() {
+        LocalDate today = LocalDate.now();
+        for (Date date : queues.keySet()) {
+            if (date.toLocalDate().isBefore(today)) {
+                queues.computeIfPresent(date, (d, queue) -> forget(d));
+                freed.remove(date);
+            }
+        }
+    }
+
+    // takes the date out of the vaccine index; returns null, so a queue compute that calls it drops the date
+    private PriorityBlockingQueue<Entry> forget(Date date) {
+        for (Set<Date> dates : datesByVaccine.values()) {
+            dates.remove(date);
+        }
+        return null;
+    }
+
+    private static String vaccineKey(String vaccineName) {
+        return vaccineName.toLowerCase(Locale.ROOT);
+    }
+
+    // books the waiting patients of the date in arrival order until it has no caregiver left
+    private void match(Date date, Set<String> outOfStock) {
+        PriorityBlockingQueue<Entry> queue = queues.get(date);
+        if (queue == null) {
+            return;
+        }
+        // requests to put back: out of doses for their vaccine, or not reached before the date filled up
+        List<Entry> waiting = new ArrayList<>();
+        boolean full = false;
+        try {
+            while (!full) {
+                List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+                queue.drainTo(batch, BATCH_SIZE);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                for (Entry entry : batch) {
+                    if (entry.booked.get()) {
+                        continue;
+                    }
+                    if (full || outOfStock.contains(entry.vaccineName)) {
+                        waiting.add(entry);
+                        continue;
+                    }
+                    ReservationResult result;
+                    try {
+                        result = ReservationService.reserve(entry.patientUsername, date, entry.vaccineName);
+                    } catch (SQLException e) {
+                        // try again on the next event
+                        waiting.add(entry);
+                        full = true;
+                        continue;
+                    }
+                    if (result.isBooked()) {
+                        entry.booked.set(true);
+                        Metrics.getInstance().counter("waitlist.booked").add(1);
+                    } else {
+                        waiting.add(entry);
+                        full = result.getStatus() == ReservationResult.Status.NO_CAREGIVER;
+                        if (result.getStatus() == ReservationResult.Status.NO_DOSES) {
+                            outOfStock.add(entry.vaccineName);
+                        }
+                    }
+                }
+            }
+        } finally {
+            queue.addAll(waiting);
+        }
+    }
+}
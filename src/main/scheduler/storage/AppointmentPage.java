@@ -0,0 +1,44 @@
+package scheduler.storage;
+
+import java.sql.Date;
+
+// which appointments of a user to read: those with an id after afterId, optionally within a date range, at most limit
+public class AppointmentPage {
+    private final int afterId;
+    private final int limit;
+    private final Date from;
+    private final Date to;
+
+    // afterId 0 starts at the first appointment, limit 0 means no limit, from and to may be null
+    public AppointmentPage(int afterId, int limit, Date from, Date to) {
+        this.afterId = afterId;
+        this.limit = limit;
+        this.from = from;
+        this.to = to;
+    }
+
+    public int getAfterId() {
+        return afterId;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    // whether this is every appointment of the user, with no paging or date range
+    public boolean isWhole() {
+        return afterId == 0 && limit == 0 && from == null && to == null;
+    }
+
+    public boolean includes(Date date) {
+        return (from == null || !date.before(from)) && (to == null || !date.after(to));
+    }
+}
@@ -0,0 +1,140 @@
+package scheduler.storage;
+
+import java.util.NavigableSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+
+/**
+ * How a reservation picks one of the caregivers free on its date. Picking the same caregiver for everyone
+ * makes concurrent reservations fight over one row, so the other strategies spread them out:
+ * ALPHABETICAL: the first free caregiver by username
+ * HASHED: a caregiver chosen by hashing the caregiver with the patient, so different patients get different ones
+ * LEAST_BOOKED: the caregiver with the fewest appointments
+ * ROUND_ROBIN: the next free caregiver after the one assigned last
+ *
+ * The strategy is picked with the CaregiverAssignment environment variable; ALPHABETICAL is the default.
+ * Each strategy picks in memory with {@link #choose} and in SQL by ordering the free Availabilities rows
+ * with {@link #getOrderBy}.
+ */
+public enum CaregiverAssignment {
+    ALPHABETICAL("Username") {
+        @Override
+        public String choose(NavigableSet<String> free, String patientUsername, ToIntFunction<String> bookings) {
+            for (String caregiver : free) {
+                return caregiver;
+            }
+            return null;
+        }
+    },
+    HASHED("CHECKSUM(Username, ?), Username") {
+        @Override
+        public String getSeed(String patientUsername) {
+            return patientUsername == null ? "" : patientUsername;
+        }
+
+        @Override
+        public String choose(NavigableSet<String> free, String patientUsername, ToIntFunction<String> bookings) {
+            // highest random weight, so a caregiver leaving the set only moves the patients that had it
+            int seed = patientUsername == null ? 0 : patientUsername.hashCode();
+            String chosen = null;
+            int best = 0;
+            for (String caregiver : free) {
+                int weight = mix(caregiver.hashCode() * 0x9E3779B9 ^ seed);
+                if (chosen == null || weight > best) {
+                    chosen = caregiver;
+                    best = weight;
+                }
+            }
+            return chosen;
+        }
+    },
+    LEAST_BOOKED("(SELECT COUNT(*) FROM Appointments WHERE c_username = Availabilities.Username), Username") {
+        @Override
+        public String choose(NavigableSet<String> free, String patientUsername, ToIntFunction<String> bookings) {
+            // ties go to the alphabetically first
+            String chosen = null;
+            int fewest = 0;
+            for (String caregiver : free) {
+                int booked = bookings.applyAsInt(caregiver);
+                if (chosen == null || booked < fewest) {
+                    chosen = caregiver;
+                    fewest = booked;
+                }
+            }
+            return chosen;
+        }
+    },
+    ROUND_ROBIN("CASE WHEN Username > ? THEN 0 ELSE 1 END, Username") {
+        private final AtomicReference<String> last = new AtomicReference<>("");
+
+        @Override
+        public String getSeed(String patientUsername) {
+            return last.get();
+        }
+
+        @Override
+        public String choose(NavigableSet<String> free, String patientUsername, ToIntFunction<String> bookings) {
+            String next = free.higher(last.get());
+            return next != null ? next : ALPHABETICAL.choose(free, patientUsername, bookings);
+        }
+
+        @Override
+        public void assigned(String caregiver) {
+            last.set(caregiver);
+        }
+    };
+
+    private static volatile CaregiverAssignment current = fromName(System.getenv("CaregiverAssignment"));
+
+    private final String orderBy;
+
+    CaregiverAssignment(String orderBy) {
+        this.orderBy = orderBy;
+    }
+
+    public static CaregiverAssignment get() {
+        return current;
+    }
+
+    public static void set(CaregiverAssignment assignment) {
+        current = assignment;
+    }
+
+    public static CaregiverAssignment fromName(String name) {
+        if (name == null || name.isEmpty()) {
+            return ALPHABETICAL;
+        }
+        for (CaregiverAssignment assignment : values()) {
+            if (assignment.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                return assignment;
+            }
+        }
+        throw new IllegalArgumentException("Unknown caregiver assignment: " + name);
+    }
+
+    // ORDER BY expression over Availabilities that puts the caregiver to pick first; has at most one parameter
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    // the value bound to the parameter of getOrderBy(), or null if it has none
+    public String getSeed(String patientUsername) {
+        return null;
+    }
+
+    // the caregiver to assign out of the free ones, or null if there is none; bookings counts appointments
+    public abstract String choose(NavigableSet<String> free, String patientUsername, ToIntFunction<String> bookings);
+
+    // called with the caregiver a reservation was assigned
+    public void assigned(String caregiver) {
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,41 @@
+package scheduler.storage;
+
+/**
+ * What a bulk import loads. Each kind has a fixed row layout for {@link StorageEngine#importBatch}:
+ * PATIENTS / CAREGIVERS: {username, salt, hash}
+ * VACCINES: {name, doses}, the doses are added to the existing stock
+ * AVAILABILITY: {date, caregiver username}
+ */
+public enum ImportKind {
+    PATIENTS("username", "username taken"),
+    CAREGIVERS("username", "username taken"),
+    VACCINES("name", "not imported"),
+    AVAILABILITY("date", "unknown caregiver or already uploaded");
+
+    private final String headerColumn;
+    private final String skippedReason;
+
+    ImportKind(String headerColumn, String skippedReason) {
+        this.headerColumn = headerColumn;
+        this.skippedReason = skippedReason;
+    }
+
+    // first column name of the optional header line in an import file
+    public String getHeaderColumn() {
+        return headerColumn;
+    }
+
+    // why a row the storage engine did not write was skipped
+    public String getSkippedReason() {
+        return skippedReason;
+    }
+
+    public static ImportKind fromName(String name) {
+        for (ImportKind kind : values()) {
+            if (kind.name().equalsIgnoreCase(name)) {
+                return kind;
+            }
+        }
+        throw new IllegalArgumentException("Unknown import kind: " + name);
+    }
+}
@@ -0,0 +1,501 @@
+package scheduler.storage;
+
+import scheduler.model.Appointment;
+import scheduler.model.Availability;
+import scheduler.model.CaregiverSchedule;
+import scheduler.model.ReservationResult;
+import scheduler.model.VaccineStock;
+
+import java.sql.BatchUpdateException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A storage engine that keeps everything in the JVM's memory; nothing survives a restart.
+ *
+ * Availabilities are keyed by epoch day and appointments by id in primitive int maps. Both are split into
+ * lock stripes, so bookings for different dates (and inserts of different appointments) do not contend.
+ * Usernames and vaccine names are case-insensitive everywhere, availability included, like in the SQL Server
+ * database.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+
+    private static final int STRIPES = 64;
+    // the widths of the name and salt/hash columns in the database
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_BYTES_LENGTH = 16;
+
+    private static class User {
+        private final String username;
+        private final Credentials credentials;
+
+        private User(String username, Credentials credentials) {
+            this.username = username;
+            this.credentials = credentials;
+        }
+    }
+
+    private final Map<String, User> patients = new ConcurrentHashMap<>();
+    private final Map<String, User> caregivers = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<String, AtomicInteger> vaccines =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    // availability: stripe (by epoch day) -> epoch day -> caregivers free that day
+    private final Object[] dateLocks = new Object[STRIPES];
+    private final List<IntObjectHashMap<TreeSet<String>>> availability = new ArrayList<>(STRIPES);
+    // bounds of the days that ever had availability, so "earliest from" searches know where to stop
+    private final AtomicInteger firstDay = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger lastDay = new AtomicInteger(Integer.MIN_VALUE);
+
+    // appointments: stripe (by id) -> id -> appointment, plus per-user indexes sorted by id
+    private final Object[] appointmentLocks = new Object[STRIPES];
+    private final List<IntObjectHashMap<Appointment>> appointments = new ArrayList<>(STRIPES);
+    private final Map<String, ConcurrentSkipListMap<Integer, Appointment>> byPatient = new ConcurrentHashMap<>();
+    private final Map<String, ConcurrentSkipListMap<Integer, Appointment>> byCaregiver = new ConcurrentHashMap<>();
+    private final AtomicInteger nextAppointmentId = new AtomicInteger(1);
+
+    public InMemoryStorageEngine() {
+        for (int i = 0; i < STRIPES; i++) {
+            dateLocks[i] = new Object();
+            availability.add(new IntObjectHashMap<>());
+            appointmentLocks[i] = new Object();
+            appointments.add(new IntObjectHashMap<>());
+        }
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static int day(Date date) {
+        return (int) date.toLocalDate().toEpochDay();
+    }
+
+    private static int stripe(int key) {
+        return Math.floorMod(key, STRIPES);
+    }
+
+    private Map<String, User> users(Role role) {
+        return role == Role.PATIENT ? patients : caregivers;
+    }
+
+    // patients and caregivers
+
+    @Override
+    public void addUser(Role role, String username, byte[] salt, byte[] hash) throws SQLException {
+        if (users(role).putIfAbsent(key(username), new User(username, new Credentials(salt, hash))) != null) {
+            throw new SQLIntegrityConstraintViolationException("Username taken: " + username);
+        }
+    }
+
+    @Override
+    public Credentials getCredentials(Role role, String username) {
+        User user = users(role).get(key(username));
+        return user == null ? null : user.credentials;
+    }
+
+    @Override
+    public boolean userExists(Role role, String username) {
+        return users(role).containsKey(key(username));
+    }
+
+    @Override
+    public int countUsers(Role role) {
+        return users(role).size();
+    }
+
+    @Override
+    public void forEachUsername(Role role, Consumer<String> action) {
+        for (User user : users(role).values()) {
+            action.accept(user.username);
+        }
+    }
+
+    // availabilities
+
+    @Override
+    public void addAvailability(Date date, String caregiverUsername) throws SQLException {
+        if (!putAvailability(day(date), caregiverUsername)) {
+            throw new SQLIntegrityConstraintViolationException("Availability already uploaded");
+        }
+    }
+
+    @Override
+    public int addAvailabilities(String caregiverUsername, List<Date> dates) {
+        int added = 0;
+        for (Date date : dates) {
+            if (putAvailability(day(date), caregiverUsername)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private boolean putAvailability(int day, String caregiverUsername) {
+        boolean added;
+        synchronized (dateLocks[stripe(day)]) {
+            IntObjectHashMap<TreeSet<String>> days = availability.get(stripe(day));
+            TreeSet<String> free = days.get(day);
+            if (free == null) {
+                free = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                days.put(day, free);
+            }
+            added = free.add(caregiverUsername);
+        }
+        firstDay.accumulateAndGet(day, Math::min);
+        lastDay.accumulateAndGet(day, Math::max);
+        return added;
+    }
+
+    @Override
+    public List<String> getAvailableCaregivers(Date date) {
+        return getAvailableCaregivers(day(date));
+    }
+
+    @Override
+    public void forEachAvailability(Consumer<Availability> action) {
+        int last = lastDay.get();
+        for (int day = firstDay.get(); day <= last; day++) {
+            Date date = null;
+            for (String caregiver : getAvailableCaregivers(day)) {
+                if (date == null) {
+                    date = Date.valueOf(LocalDate.ofEpochDay(day));
+                }
+                action.accept(new Availability(date, caregiver));
+            }
+        }
+    }
+
+    private List<String> getAvailableCaregivers(int day) {
+        synchronized (dateLocks[stripe(day)]) {
+            TreeSet<String> free = availability.get(stripe(day)).get(day);
+            return free == null ? new ArrayList<>() : new ArrayList<>(free);
+        }
+    }
+
+    @Override
+    public CaregiverSchedule getSchedule(Date from, Date to) {
+        NavigableMap<LocalDate, List<String>> caregivers = new TreeMap<>();
+        for (int day = day(from), last = day(to); day <= last; day++) {
+            List<String> free = getAvailableCaregivers(day);
+            if (!free.isEmpty()) {
+                caregivers.put(LocalDate.ofEpochDay(day), free);
+            }
+        }
+        return new CaregiverSchedule(caregivers, getVaccineStocks());
+    }
+
+    // takes the given caregiver, or the one the assignment strategy picks for the patient if caregiverUsername
+    // is null; returns who was taken
+    private String takeAvailability(int day, String caregiverUsername, String patientUsername) {
+        synchronized (dateLocks[stripe(day)]) {
+            TreeSet<String> free = availability.get(stripe(day)).get(day);
+            if (free == null || free.isEmpty()) {
+                return null;
+            }
+            if (caregiverUsername == null) {
+                CaregiverAssignment assignment = CaregiverAssignment.get();
+                String chosen = assignment.choose(free, patientUsername, this::countCaregiverAppointments);
+                free.remove(chosen);
+                assignment.assigned(chosen);
+                return chosen;
+            }
+            return free.remove(caregiverUsername) ? caregiverUsername : null;
+        }
+    }
+
+    private int countCaregiverAppointments(String caregiverUsername) {
+        Map<Integer, Appointment> ofCaregiver = byCaregiver.get(key(caregiverUsername));
+        return ofCaregiver == null ? 0 : ofCaregiver.size();
+    }
+
+    // vaccines
+
+    @Override
+    public void addVaccine(String vaccineName, int doses) throws SQLException {
+        if (vaccines.putIfAbsent(vaccineName, new AtomicInteger(doses)) != null) {
+            throw new SQLIntegrityConstraintViolationException("Vaccine already exists: " + vaccineName);
+        }
+    }
+
+    @Override
+    public VaccineStock getVaccineStock(String vaccineName) {
+        Map.Entry<String, AtomicInteger> entry = vaccines.ceilingEntry(vaccineName);
+        if (entry == null || String.CASE_INSENSITIVE_ORDER.compare(entry.getKey(), vaccineName) != 0) {
+            return null;
+        }
+        return new VaccineStock(entry.getKey(), entry.getValue().get());
+    }
+
+    @Override
+    public boolean addDoses(String vaccineName, int delta) {
+        AtomicInteger doses = vaccines.get(vaccineName);
+        if (doses == null) {
+            return false;
+        }
+        int current;
+        do {
+            current = doses.get();
+            if (current + delta < 0) {
+                return false;
+            }
+        } while (!doses.compareAndSet(current, current + delta));
+        return true;
+    }
+
+    @Override
+    public List<VaccineStock> getVaccineStocks() {
+        List<VaccineStock> stocks = new ArrayList<>(vaccines.size());
+        for (Map.Entry<String, AtomicInteger> entry : vaccines.entrySet()) {
+            stocks.add(new VaccineStock(entry.getKey(), entry.getValue().get()));
+        }
+        return stocks;
+    }
+
+    private boolean takeDose(String vaccineName) {
+        return addDoses(vaccineName, -1);
+    }
+
+    // appointments
+
+    @Override
+    public ReservationResult reserve(String patientUsername, String vaccineName, Date date, boolean orLater,
+                                     Date claimedDate, String claimedCaregiver) {
+        int bookedDay = 0;
+        String caregiver = null;
+        if (claimedCaregiver != null) {
+            bookedDay = day(claimedDate);
+            caregiver = takeAvailability(bookedDay, claimedCaregiver, patientUsername);
+        }
+        if (caregiver == null) {
+            int from = day(date);
+            int to = orLater ? lastDay.get() : from;
+            for (int day = Math.max(from, orLater ? firstDay.get() : from); day <= to && caregiver == null; day++) {
+                caregiver = takeAvailability(day, null, patientUsername);
+                bookedDay = day;
+            }
+            if (caregiver == null) {
+                return ReservationResult.failed(ReservationResult.Status.NO_CAREGIVER);
+            }
+        }
+
+        if (!takeDose(vaccineName)) {
+            // give the caregiver's slot back
+            putAvailability(bookedDay, caregiver);
+            return ReservationResult.failed(ReservationResult.Status.NO_DOSES);
+        }
+
+        Date bookedDate = Date.valueOf(LocalDate.ofEpochDay(bookedDay));
+        Appointment appointment = new Appointment(nextAppointmentId.getAndIncrement(), bookedDate,
+                patientUsername, caregiver, vaccines.ceilingKey(vaccineName));
+        putAppointment(appointment);
+        return ReservationResult.booked(appointment.getId(), bookedDate, caregiver, appointment.getVaccineName());
+    }
+
+    private void putAppointment(Appointment appointment) {
+        int id = appointment.getId();
+        synchronized (appointmentLocks[stripe(id)]) {
+            appointments.get(stripe(id)).put(id, appointment);
+        }
+        byPatient.computeIfAbsent(key(appointment.getPatientUsername()), k -> new ConcurrentSkipListMap<>())
+                .put(id, appointment);
+        byCaregiver.computeIfAbsent(key(appointment.getCaregiverUsername()), k -> new ConcurrentSkipListMap<>())
+                .put(id, appointment);
+    }
+
+    @Override
+    public Appointment getAppointment(int appointmentId) {
+        synchronized (appointmentLocks[stripe(appointmentId)]) {
+            return appointments.get(stripe(appointmentId)).get(appointmentId);
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelAppointments(Role role, String username, Collection<Integer> appointmentIds) {
+        List<Appointment> cancelled = new ArrayList<>();
+        for (int id : appointmentIds) {
+            Appointment removed = removeAppointment(id, role, username);
+            if (removed != null) {
+                putAvailability(day(removed.getDate()), removed.getCaregiverUsername());
+                addDoses(removed.getVaccineName(), 1);
+                cancelled.add(removed);
+            }
+        }
+        return cancelled;
+    }
+
+    @Override
+    public List<Appointment> cancelDay(String caregiverUsername, Date date) {
+        List<Appointment> cancelled = new ArrayList<>();
+        Map<Integer, Appointment> ofCaregiver = byCaregiver.get(key(caregiverUsername));
+        if (ofCaregiver != null) {
+            for (Appointment appointment : ofCaregiver.values()) {
+                if (appointment.getDate().equals(date)) {
+                    Appointment removed = removeAppointment(appointment.getId(), Role.CAREGIVER, caregiverUsername);
+                    if (removed != null) {
+                        addDoses(removed.getVaccineName(), 1);
+                        cancelled.add(removed);
+                    }
+                }
+            }
+        }
+        takeAvailability(day(date), caregiverUsername, null);
+        return cancelled;
+    }
+
+    // removes the appointment if it belongs to the patient or caregiver; null if it does not or is already gone
+    private Appointment removeAppointment(int id, Role role, String username) {
+        Appointment removed;
+        synchronized (appointmentLocks[stripe(id)]) {
+            Appointment appointment = appointments.get(stripe(id)).get(id);
+            if (appointment == null || !key(role == Role.PATIENT ? appointment.getPatientUsername()
+                    : appointment.getCaregiverUsername()).equals(key(username))) {
+                return null;
+            }
+            removed = appointments.get(stripe(id)).remove(id);
+        }
+        Map<Integer, Appointment> ofPatient = byPatient.get(key(removed.getPatientUsername()));
+        if (ofPatient != null) {
+            ofPatient.remove(id);
+        }
+        Map<Integer, Appointment> ofCaregiver = byCaregiver.get(key(removed.getCaregiverUsername()));
+        if (ofCaregiver != null) {
+            ofCaregiver.remove(id);
+        }
+        return removed;
+    }
+
+    @Override
+    public List<Appointment> getAppointments(Role role, String username) {
+        Map<Integer, Appointment> ofUser = (role == Role.PATIENT ? byPatient : byCaregiver).get(key(username));
+        return ofUser == null ? new ArrayList<>() : new ArrayList<>(ofUser.values());
+    }
+
+    @Override
+    public Map<String, Integer> countAppointments(Role role) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (ConcurrentSkipListMap<Integer, Appointment> ofUser : (role == Role.PATIENT ? byPatient : byCaregiver).values()) {
+            Map.Entry<Integer, Appointment> first = ofUser.firstEntry();
+            if (first != null) {
+                Appointment appointment = first.getValue();
+                counts.put(role == Role.PATIENT ? appointment.getPatientUsername() : appointment.getCaregiverUsername(),
+                        ofUser.size());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public void forEachAppointment(Role role, String username, AppointmentPage page, Consumer<Appointment> action) {
+        ConcurrentSkipListMap<Integer, Appointment> ofUser =
+                (role == Role.PATIENT ? byPatient : byCaregiver).get(key(username));
+        if (ofUser == null) {
+            return;
+        }
+        int left = page.getLimit() > 0 ? page.getLimit() : Integer.MAX_VALUE;
+        for (Appointment appointment : ofUser.tailMap(page.getAfterId(), false).values()) {
+            if (left == 0) {
+                return;
+            }
+            if (page.includes(appointment.getDate())) {
+                action.accept(appointment);
+                left--;
+            }
+        }
+    }
+
+    // bulk import
+
+    @Override
+    public int[] importBatch(ImportKind kind, List<Object[]> rows) throws SQLException {
+        // every row is checked before any is written, so a batch the database would reject writes nothing
+        checkImportBatch(kind, rows);
+        int[] written = new int[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            Object[] row = rows.get(i);
+            switch (kind) {
+                case PATIENTS:
+                case CAREGIVERS:
+                    Role role = kind == ImportKind.PATIENTS ? Role.PATIENT : Role.CAREGIVER;
+                    String username = (String) row[0];
+                    User user = new User(username, new Credentials((byte[]) row[1], (byte[]) row[2]));
+                    written[i] = users(role).putIfAbsent(key(username), user) == null ? 1 : 0;
+                    break;
+                case VACCINES:
+                    vaccines.computeIfAbsent((String) row[0], name -> new AtomicInteger()).addAndGet((Integer) row[1]);
+                    written[i] = 1;
+                    break;
+                case AVAILABILITY:
+                    String caregiver = (String) row[1];
+                    written[i] = userExists(Role.CAREGIVER, caregiver)
+                            && putAvailability(day((Date) row[0]), caregiver) ? 1 : 0;
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        return written;
+    }
+
+    // fails like the database's batch would: on a row that does not fit the table, or on more doses than the
+    // stock column can hold
+    private void checkImportBatch(ImportKind kind, List<Object[]> rows) throws SQLException {
+        Map<String, Long> addedDoses = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < rows.size(); i++) {
+            Object[] row = rows.get(i);
+            boolean fits;
+            switch (kind) {
+                case PATIENTS:
+                case CAREGIVERS:
+                    fits = row.length == 3 && isName(row[0]) && isBytes(row[1]) && isBytes(row[2]);
+                    break;
+                case VACCINES:
+                    fits = row.length == 2 && isName(row[0]) && row[1] instanceof Integer;
+                    if (fits) {
+                        addedDoses.merge((String) row[0], (long) (Integer) row[1], Long::sum);
+                    }
+                    break;
+                case AVAILABILITY:
+                    fits = row.length == 2 && row[0] instanceof Date && isName(row[1]);
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            if (!fits) {
+                throw new BatchUpdateException("Row " + (i + 1) + " of the batch does not fit the " + kind + " layout",
+                        new int[0]);
+            }
+        }
+        for (Map.Entry<String, Long> added : addedDoses.entrySet()) {
+            AtomicInteger doses = vaccines.get(added.getKey());
+            long total = (doses == null ? 0 : doses.get()) + added.getValue();
+            if (total < Integer.MIN_VALUE || total > Integer.MAX_VALUE) {
+                throw new BatchUpdateException("Arithmetic overflow in the doses of " + added.getKey(), new int[0]);
+            }
+        }
+    }
+
+    private static boolean isName(Object value) {
+        return value instanceof String && ((String) value).length() <= MAX_NAME_LENGTH;
+    }
+
+    private static boolean isBytes(Object value) {
+        return value instanceof byte[] && ((byte[]) value).length <= MAX_BYTES_LENGTH;
+    }
+}
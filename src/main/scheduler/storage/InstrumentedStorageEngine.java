@@ -0,0 +1,81 @@
+package scheduler.storage;
+
+import scheduler.metrics.Metrics;
+import scheduler.metrics.Timer;
+import scheduler.model.Appointment;
+import scheduler.model.VaccineStock;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Wraps a storage engine so every call is timed as "storage.&lt;method&gt;" and the rows it returns are counted
+ * as "storage.&lt;method&gt;.rows". A call fails when it throws.
+ */
+class InstrumentedStorageEngine implements InvocationHandler {
+
+    private final StorageEngine engine;
+
+    private InstrumentedStorageEngine(StorageEngine engine) {
+        this.engine = engine;
+    }
+
+    static StorageEngine wrap(StorageEngine engine) {
+        if (Proxy.isProxyClass(engine.getClass())
+                && Proxy.getInvocationHandler(engine) instanceof InstrumentedStorageEngine) {
+            return engine;
+        }
+        return (StorageEngine) Proxy.newProxyInstance(StorageEngine.class.getClassLoader(),
+                new Class<?>[]{StorageEngine.class}, new InstrumentedStorageEngine(engine));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(engine, args);
+        }
+        String name = "storage." + method.getName();
+        Timer timer = Metrics.getInstance().timer(name);
+        // callbacks run on this thread before the call returns
+        long[] rows = {0};
+
+        // streaming reads hand their rows to a callback, so count them there
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof Consumer) {
+                    Consumer<Object> action = (Consumer<Object>) args[i];
+                    args[i] = (Consumer<Object>) row -> {
+                        rows[0]++;
+                        action.accept(row);
+                    };
+                }
+            }
+        }
+
+        long start = timer.start();
+        boolean succeeded = false;
+        try {
+            Object result = method.invoke(engine, args);
+            succeeded = true;
+            if (result instanceof Collection) {
+                rows[0] += ((Collection<?>) result).size();
+            } else if (result instanceof Credentials || result instanceof Appointment
+                    || result instanceof VaccineStock) {
+                rows[0]++;
+            }
+            return result;
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            timer.stop(start, succeeded);
+            if (rows[0] > 0) {
+                Metrics.getInstance().counter(name + ".rows").add(rows[0]);
+            }
+        }
+    }
+}
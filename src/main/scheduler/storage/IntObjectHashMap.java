@@ -0,0 +1,159 @@
+package scheduler.storage;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A map from int to object with open addressing, so keys are never boxed. Not thread-safe; the in-memory
+ * engine only uses it under a lock.
+ */
+class IntObjectHashMap<V> {
+
+    private static final int EMPTY = 0;
+
+    private int[] keys;
+    private Object[] values;
+    // keys are stored as key + 1 so that 0 can mark an empty slot; -1, the one key that would be stored as 0,
+    // is kept aside
+    private V minusOneValue = null;
+    private int size = 0;
+
+    IntObjectHashMap() {
+        this(16);
+    }
+
+    IntObjectHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(8, expectedSize * 2) - 1) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        if (key == -1) {
+            return minusOneValue;
+        }
+        int stored = key + 1;
+        int mask = keys.length - 1;
+        for (int i = mix(stored) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == stored) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        if (key == -1) {
+            V previous = minusOneValue;
+            minusOneValue = value;
+            if (previous == null) {
+                size++;
+            }
+            return previous;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int stored = key + 1;
+        int mask = keys.length - 1;
+        int i = mix(stored) & mask;
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == stored) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = stored;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        if (key == -1) {
+            V previous = minusOneValue;
+            if (previous != null) {
+                minusOneValue = null;
+                size--;
+            }
+            return previous;
+        }
+        int stored = key + 1;
+        int mask = keys.length - 1;
+        int i = mix(stored) & mask;
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == stored) {
+                V previous = (V) values[i];
+                deleteSlot(i);
+                size--;
+                return previous;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                action.accept((V) values[i]);
+            }
+        }
+        if (minusOneValue != null) {
+            action.accept(minusOneValue);
+        }
+    }
+
+    // backward-shift deletion keeps probe chains intact without tombstones
+    private void deleteSlot(int slot) {
+        int mask = keys.length - 1;
+        int gap = slot;
+        int i = (slot + 1) & mask;
+        while (keys[i] != EMPTY) {
+            int home = mix(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        values[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = mix(oldKeys[j]) & mask;
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+        Arrays.fill(oldValues, null);
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,11 @@
+package scheduler.storage;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// turns the current row of a result set into an object, reading the columns by index
+@FunctionalInterface
+interface RowMapper<T> {
+
+    T map(ResultSet resultSet) throws SQLException;
+}
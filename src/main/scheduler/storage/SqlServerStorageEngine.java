@@ -0,0 +1,674 @@
+package scheduler.storage;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.IdAllocator;
+import scheduler.db.TransactionRunner;
+import scheduler.model.Appointment;
+import scheduler.model.Availability;
+import scheduler.model.CaregiverSchedule;
+import scheduler.model.ReservationResult;
+import scheduler.model.VaccineStock;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * The storage engine backed by the SQL Server database described in create.sql.
+ */
+public class SqlServerStorageEngine implements StorageEngine {
+
+    // READPAST skips a row another reservation is claiming instead of waiting for its transaction to end
+    private static final String CLAIM_GIVEN_CAREGIVER =
+            "DELETE FROM Availabilities WITH (ROWLOCK, READPAST) WHERE Time = ? AND Username = ?";
+    private static final String TAKE_DOSE = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0";
+    private static final String ADD_APPOINTMENT = "INSERT INTO Appointments VALUES (?, ?, ?, ?, ?)";
+
+    private static final String ADD_AVAILABILITY = "INSERT INTO Availabilities VALUES (? , ?)";
+    private static final String ADD_AVAILABILITY_IF_ABSENT = "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) WHERE Time = ? AND Username = ?)";
+    private static final String GET_AVAILABLE_CAREGIVERS = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username";
+    private static final String GET_AVAILABILITIES = "SELECT Time, Username FROM Availabilities";
+
+    private static final String ADD_VACCINE = "INSERT INTO vaccines VALUES (?, ?)";
+    private static final String GET_VACCINE = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
+    // relative, so concurrent changes and the decrements of reservations are never overwritten
+    private static final String ADD_DOSES = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ? AND Doses + ? >= 0";
+    private static final String GET_VACCINES = "SELECT Name, Doses FROM Vaccines ORDER BY Name";
+    // two result sets in one round-trip: the availability of the range grouped by date, then the stock
+    private static final String GET_SCHEDULE = "SELECT Time, Username FROM Availabilities " +
+            "WHERE Time BETWEEN ? AND ? ORDER BY Time, Username; " + GET_VACCINES;
+
+    // rows fetched per round-trip when streaming appointments
+    private static final int APPOINTMENT_FETCH_SIZE = 100;
+    private static final String COUNT_PATIENT_APPOINTMENTS =
+            "SELECT p_username, COUNT(*) FROM Appointments GROUP BY p_username";
+    private static final String COUNT_CAREGIVER_APPOINTMENTS =
+            "SELECT c_username, COUNT(*) FROM Appointments GROUP BY c_username";
+    private static final String GET_APPOINTMENT = "SELECT a_id, date, p_username, c_username, vaccine_name FROM Appointments WHERE a_id = ?";
+    // the ids come as one comma-separated parameter, so any number of them is a single statement
+    private static final String CANCEL_PATIENT_APPOINTMENTS = "DELETE FROM Appointments " +
+            "OUTPUT DELETED.a_id, DELETED.date, DELETED.p_username, DELETED.c_username, DELETED.vaccine_name " +
+            "WHERE p_username = ? AND a_id IN (SELECT CAST(value AS INT) FROM STRING_SPLIT(?, ','))";
+    private static final String CANCEL_CAREGIVER_APPOINTMENTS = "DELETE FROM Appointments " +
+            "OUTPUT DELETED.a_id, DELETED.date, DELETED.p_username, DELETED.c_username, DELETED.vaccine_name " +
+            "WHERE c_username = ? AND a_id IN (SELECT CAST(value AS INT) FROM STRING_SPLIT(?, ','))";
+    private static final String CANCEL_DAY = "DELETE FROM Appointments " +
+            "OUTPUT DELETED.a_id, DELETED.date, DELETED.p_username, DELETED.c_username, DELETED.vaccine_name " +
+            "WHERE c_username = ? AND date = ?";
+    private static final String WITHDRAW_AVAILABILITY = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
+    private static final String GET_PATIENT_APPOINTMENTS = "SELECT a_id, date, p_username, c_username, vaccine_name " +
+            "FROM Appointments WHERE p_username = ? ORDER BY a_id";
+    private static final String GET_CAREGIVER_APPOINTMENTS = "SELECT a_id, date, p_username, c_username, vaccine_name " +
+            "FROM Appointments WHERE c_username = ? ORDER BY a_id";
+
+    private static final String IMPORT_PATIENT = "INSERT INTO Patients (Username, Salt, Hash) SELECT ?, ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Patients WITH (UPDLOCK, HOLDLOCK) WHERE Username = ?)";
+    private static final String IMPORT_CAREGIVER = "INSERT INTO Caregivers (Username, Salt, Hash) SELECT ?, ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Caregivers WITH (UPDLOCK, HOLDLOCK) WHERE Username = ?)";
+    private static final String IMPORT_VACCINE = "MERGE Vaccines WITH (HOLDLOCK) AS v USING (SELECT ? AS Name, ? AS Doses) AS s " +
+            "ON v.Name = s.Name " +
+            "WHEN MATCHED THEN UPDATE SET Doses = v.Doses + s.Doses " +
+            "WHEN NOT MATCHED THEN INSERT (Name, Doses) VALUES (s.Name, s.Doses);";
+    private static final String IMPORT_AVAILABILITY = "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+            "WHERE EXISTS (SELECT 1 FROM Caregivers WHERE Username = ?) " +
+            "AND NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) WHERE Time = ? AND Username = ?)";
+
+    // every query selects its columns in the order its mapper reads them
+    private static final RowMapper<String> USERNAME = resultSet -> resultSet.getString(1);
+    private static final RowMapper<Credentials> CREDENTIALS =
+            resultSet -> new Credentials(resultSet.getBytes(1), resultSet.getBytes(2));
+    private static final RowMapper<Availability> AVAILABILITY =
+            resultSet -> new Availability(resultSet.getDate(1), resultSet.getString(2));
+    private static final RowMapper<VaccineStock> VACCINE_STOCK =
+            resultSet -> new VaccineStock(resultSet.getString(1), resultSet.getInt(2));
+    private static final RowMapper<Appointment> APPOINTMENT =
+            resultSet -> new Appointment(resultSet.getInt(1), resultSet.getDate(2), resultSet.getString(3),
+                    resultSet.getString(4), resultSet.getString(5));
+
+    /**
+     * Claims the free caregiver the assignment strategy puts first for the date (or the earliest date on or after
+     * it) and returns who it was. UPDLOCK keeps a concurrent reservation from claiming the same row and READPAST
+     * makes it take the next free row instead of queueing behind ours, so concurrent reservations spread over the
+     * caregivers rather than waiting on one.
+     */
+    private static String claimCaregiverSql(CaregiverAssignment assignment, boolean orLater) {
+        return "WITH next AS (SELECT TOP 1 Time, Username FROM Availabilities WITH (UPDLOCK, READPAST, ROWLOCK) " +
+                (orLater ? "WHERE Time >= ? ORDER BY Time, " : "WHERE Time = ? ORDER BY ") + assignment.getOrderBy() +
+                ") DELETE FROM next OUTPUT DELETED.Time, DELETED.Username";
+    }
+
+    private static <T> void forEachRow(PreparedStatement statement, RowMapper<T> mapper, Consumer<? super T> action)
+            throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                action.accept(mapper.map(resultSet));
+            }
+        }
+    }
+
+    private static <T> List<T> listRows(PreparedStatement statement, RowMapper<T> mapper) throws SQLException {
+        List<T> rows = new ArrayList<>();
+        forEachRow(statement, mapper, rows::add);
+        return rows;
+    }
+
+    // the first row, or null if there is none
+    private static <T> T firstRow(PreparedStatement statement, RowMapper<T> mapper) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? mapper.map(resultSet) : null;
+        }
+    }
+
+    private static String usersTable(Role role) {
+        return role == Role.PATIENT ? "Patients" : "Caregivers";
+    }
+
+    private static Connection connect(ConnectionManager cm) throws SQLException {
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("Failed to connect to the database.");
+        }
+        return con;
+    }
+
+    // patients and caregivers
+
+    @Override
+    public void addUser(Role role, String username, byte[] salt, byte[] hash) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        String addUser = "INSERT INTO " + usersTable(role) + " VALUES (? , ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addUser)) {
+            statement.setString(1, username);
+            statement.setBytes(2, salt);
+            statement.setBytes(3, hash);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Credentials getCredentials(Role role, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        String getUser = "SELECT Salt, Hash FROM " + usersTable(role) + " WHERE Username = ?";
+        try (PreparedStatement statement = con.prepareStatement(getUser)) {
+            statement.setString(1, username);
+            return firstRow(statement, CREDENTIALS);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public boolean userExists(Role role, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(
+                "SELECT 1 FROM " + usersTable(role) + " WHERE Username = ?")) {
+            statement.setString(1, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public int countUsers(Role role) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement("SELECT COUNT(*) FROM " + usersTable(role));
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void forEachUsername(Role role, Consumer<String> action) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement("SELECT Username FROM " + usersTable(role))) {
+            statement.setFetchSize(1000);
+            forEachRow(statement, USERNAME, action);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // availabilities
+
+    @Override
+    public void addAvailability(Date date, String caregiverUsername) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(ADD_AVAILABILITY)) {
+            statement.setDate(1, date);
+            statement.setString(2, caregiverUsername);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public int addAvailabilities(String caregiverUsername, List<Date> dates) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try {
+            con.setAutoCommit(false);
+            int added = 0;
+            try (PreparedStatement statement = con.prepareStatement(ADD_AVAILABILITY_IF_ABSENT)) {
+                for (Date d : dates) {
+                    statement.setDate(1, d);
+                    statement.setString(2, caregiverUsername);
+                    statement.setDate(3, d);
+                    statement.setString(4, caregiverUsername);
+                    statement.addBatch();
+                }
+                for (int count : statement.executeBatch()) {
+                    if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+                        added++;
+                    }
+                }
+            }
+            con.commit();
+            return added;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<String> getAvailableCaregivers(Date date) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(GET_AVAILABLE_CAREGIVERS)) {
+            statement.setDate(1, date);
+            return listRows(statement, USERNAME);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void forEachAvailability(Consumer<Availability> action) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(GET_AVAILABILITIES)) {
+            statement.setFetchSize(1000);
+            forEachRow(statement, AVAILABILITY, action);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public CaregiverSchedule getSchedule(Date from, Date to) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(GET_SCHEDULE)) {
+            statement.setDate(1, from);
+            statement.setDate(2, to);
+            statement.execute();
+            NavigableMap<LocalDate, List<String>> caregivers = new TreeMap<>();
+            try (ResultSet resultSet = statement.getResultSet()) {
+                while (resultSet.next()) {
+                    Availability availability = AVAILABILITY.map(resultSet);
+                    caregivers.computeIfAbsent(availability.getDate().toLocalDate(), d -> new ArrayList<>())
+                            .add(availability.getCaregiverUsername());
+                }
+            }
+            List<VaccineStock> vaccines = new ArrayList<>();
+            if (statement.getMoreResults()) {
+                try (ResultSet resultSet = statement.getResultSet()) {
+                    while (resultSet.next()) {
+                        vaccines.add(VACCINE_STOCK.map(resultSet));
+                    }
+                }
+            }
+            return new CaregiverSchedule(caregivers, vaccines);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // vaccines
+
+    @Override
+    public void addVaccine(String vaccineName, int doses) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(ADD_VACCINE)) {
+            statement.setString(1, vaccineName);
+            statement.setInt(2, doses);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public VaccineStock getVaccineStock(String vaccineName) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(GET_VACCINE)) {
+            statement.setString(1, vaccineName);
+            return firstRow(statement, VACCINE_STOCK);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public boolean addDoses(String vaccineName, int delta) throws SQLException {
+        return TransactionRunner.getInstance().run(con -> {
+            try (PreparedStatement statement = con.prepareStatement(ADD_DOSES)) {
+                statement.setInt(1, delta);
+                statement.setString(2, vaccineName);
+                statement.setInt(3, delta);
+                return statement.executeUpdate() == 1;
+            }
+        });
+    }
+
+    @Override
+    public List<VaccineStock> getVaccineStocks() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(GET_VACCINES)) {
+            return listRows(statement, VACCINE_STOCK);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // appointments
+
+    @Override
+    public ReservationResult reserve(String patientUsername, String vaccineName, Date date, boolean orLater,
+                                     Date claimedDate, String claimedCaregiver) throws SQLException {
+        // taken before borrowing the connection, so a block refill never waits on the pool while we hold one
+        int appointmentId = IdAllocator.forAppointments().nextId();
+
+        // run again from the start if the claim deadlocks with another reservation or a cancel
+        return TransactionRunner.getInstance().run(con -> {
+            Date bookedDate = null;
+            String caregiver = null;
+            if (claimedCaregiver != null) {
+                try (PreparedStatement claim = con.prepareStatement(CLAIM_GIVEN_CAREGIVER)) {
+                    claim.setDate(1, claimedDate);
+                    claim.setString(2, claimedCaregiver);
+                    if (claim.executeUpdate() == 1) {
+                        bookedDate = claimedDate;
+                        caregiver = claimedCaregiver;
+                    }
+                }
+            }
+            if (caregiver == null) {
+                // nobody picked, or the pick was stale: let the database pick
+                CaregiverAssignment assignment = CaregiverAssignment.get();
+                try (PreparedStatement claim = con.prepareStatement(claimCaregiverSql(assignment, orLater))) {
+                    claim.setDate(1, date);
+                    String seed = assignment.getSeed(patientUsername);
+                    if (seed != null) {
+                        claim.setString(2, seed);
+                    }
+                    Availability claimed = firstRow(claim, AVAILABILITY);
+                    if (claimed != null) {
+                        bookedDate = claimed.getDate();
+                        caregiver = claimed.getCaregiverUsername();
+                        assignment.assigned(caregiver);
+                    }
+                }
+                if (caregiver == null) {
+                    con.rollback();
+                    return ReservationResult.failed(ReservationResult.Status.NO_CAREGIVER);
+                }
+            }
+
+            try (PreparedStatement takeDose = con.prepareStatement(TAKE_DOSE)) {
+                takeDose.setString(1, vaccineName);
+                if (takeDose.executeUpdate() != 1) {
+                    // unknown vaccine or out of stock; this also gives the caregiver's slot back
+                    con.rollback();
+                    return ReservationResult.failed(ReservationResult.Status.NO_DOSES);
+                }
+            }
+
+            try (PreparedStatement insert = con.prepareStatement(ADD_APPOINTMENT)) {
+                insert.setInt(1, appointmentId);
+                insert.setDate(2, bookedDate);
+                insert.setString(3, patientUsername);
+                insert.setString(4, caregiver);
+                insert.setString(5, vaccineName);
+                if (insert.executeUpdate() != 1) {
+                    con.rollback();
+                    throw new SQLException("Failed to insert appointment " + appointmentId);
+                }
+            }
+
+            return ReservationResult.booked(appointmentId, bookedDate, caregiver, vaccineName);
+        });
+    }
+
+    @Override
+    public Appointment getAppointment(int appointmentId) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(GET_APPOINTMENT)) {
+            statement.setInt(1, appointmentId);
+            return firstRow(statement, APPOINTMENT);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelAppointments(Role role, String username, Collection<Integer> appointmentIds)
+            throws SQLException {
+        if (appointmentIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringJoiner ids = new StringJoiner(",");
+        for (int id : appointmentIds) {
+            ids.add(Integer.toString(id));
+        }
+
+        // the appointments, the caregivers' slots and the doses change together, or not at all
+        return TransactionRunner.getInstance().run(con -> {
+            List<Appointment> cancelled;
+            try (PreparedStatement delete = con.prepareStatement(
+                    role == Role.PATIENT ? CANCEL_PATIENT_APPOINTMENTS : CANCEL_CAREGIVER_APPOINTMENTS)) {
+                delete.setString(1, username);
+                delete.setString(2, ids.toString());
+                cancelled = listRows(delete, APPOINTMENT);
+            }
+            if (!cancelled.isEmpty()) {
+                // the caregiver may have uploaded the date again since it was booked
+                try (PreparedStatement restore = con.prepareStatement(ADD_AVAILABILITY_IF_ABSENT)) {
+                    for (Appointment appointment : cancelled) {
+                        restore.setDate(1, appointment.getDate());
+                        restore.setString(2, appointment.getCaregiverUsername());
+                        restore.setDate(3, appointment.getDate());
+                        restore.setString(4, appointment.getCaregiverUsername());
+                        restore.addBatch();
+                    }
+                    restore.executeBatch();
+                }
+                restoreDoses(con, cancelled);
+            }
+            return cancelled;
+        });
+    }
+
+    @Override
+    public List<Appointment> cancelDay(String caregiverUsername, Date date) throws SQLException {
+        return TransactionRunner.getInstance().run(con -> {
+            List<Appointment> cancelled;
+            try (PreparedStatement delete = con.prepareStatement(CANCEL_DAY)) {
+                delete.setString(1, caregiverUsername);
+                delete.setDate(2, date);
+                cancelled = listRows(delete, APPOINTMENT);
+            }
+            // nobody may book the caregiver that day any more either
+            try (PreparedStatement withdraw = con.prepareStatement(WITHDRAW_AVAILABILITY)) {
+                withdraw.setDate(1, date);
+                withdraw.setString(2, caregiverUsername);
+                withdraw.executeUpdate();
+            }
+            restoreDoses(con, cancelled);
+            return cancelled;
+        });
+    }
+
+    // puts the doses of the cancelled appointments back, one relative update per vaccine
+    private static void restoreDoses(Connection con, List<Appointment> cancelled) throws SQLException {
+        Map<String, Integer> doses = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Appointment appointment : cancelled) {
+            doses.merge(appointment.getVaccineName(), 1, Integer::sum);
+        }
+        if (doses.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement restore = con.prepareStatement(ADD_DOSES)) {
+            for (Map.Entry<String, Integer> vaccine : doses.entrySet()) {
+                restore.setInt(1, vaccine.getValue());
+                restore.setString(2, vaccine.getKey());
+                restore.setInt(3, vaccine.getValue());
+                restore.addBatch();
+            }
+            restore.executeBatch();
+        }
+    }
+
+    @Override
+    public List<Appointment> getAppointments(Role role, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(
+                role == Role.PATIENT ? GET_PATIENT_APPOINTMENTS : GET_CAREGIVER_APPOINTMENTS)) {
+            statement.setString(1, username);
+            return listRows(statement, APPOINTMENT);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> countAppointments(Role role) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(
+                role == Role.PATIENT ? COUNT_PATIENT_APPOINTMENTS : COUNT_CAREGIVER_APPOINTMENTS);
+             ResultSet resultSet = statement.executeQuery()) {
+            Map<String, Integer> counts = new HashMap<>();
+            while (resultSet.next()) {
+                counts.put(resultSet.getString(1), resultSet.getInt(2));
+            }
+            return counts;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void forEachAppointment(Role role, String username, AppointmentPage page, Consumer<Appointment> action)
+            throws SQLException {
+        // keyset pagination: seek past the last id instead of skipping rows, so every page costs the same
+        StringBuilder sql = new StringBuilder("SELECT TOP (?) a_id, date, p_username, c_username, vaccine_name " +
+                "FROM Appointments WHERE ").append(role == Role.PATIENT ? "p_username" : "c_username")
+                .append(" = ? AND a_id > ?");
+        if (page.getFrom() != null) {
+            sql.append(" AND date >= ?");
+        }
+        if (page.getTo() != null) {
+            sql.append(" AND date <= ?");
+        }
+        sql.append(" ORDER BY a_id");
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try (PreparedStatement statement = con.prepareStatement(sql.toString())) {
+            int i = 1;
+            statement.setInt(i++, page.getLimit() > 0 ? page.getLimit() : Integer.MAX_VALUE);
+            statement.setString(i++, username);
+            statement.setInt(i++, page.getAfterId());
+            if (page.getFrom() != null) {
+                statement.setDate(i++, page.getFrom());
+            }
+            if (page.getTo() != null) {
+                statement.setDate(i, page.getTo());
+            }
+            statement.setFetchSize(APPOINTMENT_FETCH_SIZE);
+            forEachRow(statement, APPOINTMENT, action);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // bulk import
+
+    @Override
+    public int[] importBatch(ImportKind kind, List<Object[]> rows) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = connect(cm);
+
+        try {
+            con.setAutoCommit(false);
+            int[] counts;
+            try (PreparedStatement statement = con.prepareStatement(importSql(kind))) {
+                for (Object[] row : rows) {
+                    Object[] parameters = importParameters(kind, row);
+                    for (int i = 0; i < parameters.length; i++) {
+                        statement.setObject(i + 1, parameters[i]);
+                    }
+                    statement.addBatch();
+                }
+                counts = statement.executeBatch();
+            }
+            con.commit();
+
+            int[] written = new int[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                written[i] = counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO ? 1 : 0;
+            }
+            return written;
+        } catch (BatchUpdateException e) {
+            // nothing of this batch was committed
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static String importSql(ImportKind kind) {
+        switch (kind) {
+            case PATIENTS:
+                return IMPORT_PATIENT;
+            case CAREGIVERS:
+                return IMPORT_CAREGIVER;
+            case VACCINES:
+                return IMPORT_VACCINE;
+            case AVAILABILITY:
+                return IMPORT_AVAILABILITY;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    // the existence checks in the import statements repeat some of the row's values
+    private static Object[] importParameters(ImportKind kind, Object[] row) {
+        switch (kind) {
+            case PATIENTS:
+            case CAREGIVERS:
+                return new Object[]{row[0], row[1], row[2], row[0]};
+            case VACCINES:
+                return row;
+            case AVAILABILITY:
+                return new Object[]{row[0], row[1], row[1], row[0], row[1]};
+            default:
+                throw new IllegalStateException();
+        }
+    }
+}
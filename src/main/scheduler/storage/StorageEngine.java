@@ -0,0 +1,119 @@
+package scheduler.storage;
+
+import scheduler.model.Appointment;
+import scheduler.model.Availability;
+import scheduler.model.CaregiverSchedule;
+import scheduler.model.ReservationResult;
+import scheduler.model.VaccineStock;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Where the scheduler keeps its data. The model classes, services and caches only talk to the database through
+ * this interface, so the application can run on SQL Server ({@link SqlServerStorageEngine}) or entirely in
+ * memory ({@link InMemoryStorageEngine}). Implementations must be safe to use from many threads.
+ */
+public interface StorageEngine {
+
+    enum Role {
+        PATIENT,
+        CAREGIVER
+    }
+
+    // patients and caregivers
+
+    // fails if the username is already taken
+    void addUser(Role role, String username, byte[] salt, byte[] hash) throws SQLException;
+
+    // null if there is no such user
+    Credentials getCredentials(Role role, String username) throws SQLException;
+
+    boolean userExists(Role role, String username) throws SQLException;
+
+    int countUsers(Role role) throws SQLException;
+
+    void forEachUsername(Role role, Consumer<String> action) throws SQLException;
+
+    // availabilities
+
+    // fails if the caregiver is already available on the date
+    void addAvailability(Date date, String caregiverUsername) throws SQLException;
+
+    // adds all the dates at once, skipping the ones that already exist; returns how many were added
+    int addAvailabilities(String caregiverUsername, List<Date> dates) throws SQLException;
+
+    // sorted by username
+    List<String> getAvailableCaregivers(Date date) throws SQLException;
+
+    void forEachAvailability(Consumer<Availability> action) throws SQLException;
+
+    // the caregivers free on every date from from to to (inclusive) and the stock of every vaccine, read at once
+    CaregiverSchedule getSchedule(Date from, Date to) throws SQLException;
+
+    // vaccines
+
+    void addVaccine(String vaccineName, int doses) throws SQLException;
+
+    // null if there is no such vaccine
+    VaccineStock getVaccineStock(String vaccineName) throws SQLException;
+
+    // changes the stock by delta in one atomic update; false if there is no such vaccine or it would go below 0
+    boolean addDoses(String vaccineName, int delta) throws SQLException;
+
+    // every vaccine, sorted by name
+    List<VaccineStock> getVaccineStocks() throws SQLException;
+
+    // appointments
+
+    /**
+     * Atomically claims a free caregiver on {@code date} (or on the earliest date from {@code date} on, if
+     * {@code orLater}), takes one dose of the vaccine and records the appointment. If the caller already picked
+     * a caregiver ({@code claimedDate} and {@code claimedCaregiver}, otherwise null), that one is booked when it
+     * is still free; otherwise the caregiver is picked by {@link CaregiverAssignment#get()}.
+     */
+    ReservationResult reserve(String patientUsername, String vaccineName, Date date, boolean orLater,
+                              Date claimedDate, String claimedCaregiver) throws SQLException;
+
+    // null if there is no such appointment
+    Appointment getAppointment(int appointmentId) throws SQLException;
+
+    /**
+     * Cancels those of the appointments that belong to the patient or caregiver, in one transaction: each is
+     * deleted, its caregiver is available again on its date and its dose goes back into stock. Returns the
+     * appointments that were cancelled; ids that do not exist or belong to someone else are left alone.
+     */
+    List<Appointment> cancelAppointments(Role role, String username, Collection<Integer> appointmentIds)
+            throws SQLException;
+
+    /**
+     * Cancels every appointment of the caregiver on the date and withdraws the caregiver's availability for
+     * it, in one transaction; the doses go back into stock. Returns the appointments that were cancelled.
+     */
+    List<Appointment> cancelDay(String caregiverUsername, Date date) throws SQLException;
+
+    // appointments of the patient or caregiver, sorted by id
+    List<Appointment> getAppointments(Role role, String username) throws SQLException;
+
+    // number of appointments of every patient or caregiver that has any
+    Map<String, Integer> countAppointments(Role role) throws SQLException;
+
+    /**
+     * Streams one page of the appointments of the patient or caregiver to the action, sorted by id, without
+     * holding the page in memory. The next page starts after the id of the last appointment of this one.
+     */
+    void forEachAppointment(Role role, String username, AppointmentPage page, Consumer<Appointment> action)
+            throws SQLException;
+
+    // bulk import
+
+    /**
+     * Writes one batch of rows laid out as described in {@link ImportKind} and commits it. Returns, per row,
+     * whether it was written (1) or skipped (0). If the batch fails nothing of it is written.
+     */
+    int[] importBatch(ImportKind kind, List<Object[]> rows) throws SQLException;
+}
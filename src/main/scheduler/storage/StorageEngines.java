@@ -0,0 +1,39 @@
+package scheduler.storage;
+
+/**
+ * Holds the storage engine the application runs on. It is picked with the Storage environment variable:
+ * "sqlserver" (the default) or "memory". Every call to the engine is timed, see {@link InstrumentedStorageEngine}.
+ */
+public class StorageEngines {
+
+    private static volatile StorageEngine engine = null;
+
+    private StorageEngines() {
+    }
+
+    public static StorageEngine get() {
+        if (engine == null) {
+            synchronized (StorageEngines.class) {
+                if (engine == null) {
+                    engine = InstrumentedStorageEngine.wrap(create(System.getenv("Storage")));
+                }
+            }
+        }
+        return engine;
+    }
+
+    // replaces the engine, e.g. to run benchmarks against the in-memory one
+    public static void set(StorageEngine storageEngine) {
+        engine = InstrumentedStorageEngine.wrap(storageEngine);
+    }
+
+    public static StorageEngine create(String name) {
+        if (name == null || name.isEmpty() || name.equalsIgnoreCase("sqlserver")) {
+            return new SqlServerStorageEngine();
+        }
+        if (name.equalsIgnoreCase("memory")) {
+            return new InMemoryStorageEngine();
+        }
+        throw new IllegalArgumentException("Unknown storage engine: " + name);
+    }
+}
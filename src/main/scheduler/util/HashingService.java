@@ -0,0 +1,66 @@
+package scheduler.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs password hashing on a pool with one thread per core, so a burst of logins or registrations uses every
+ * core without oversubscribing them. At most {@code queueDepth} hashes wait in the queue; beyond that the
+ * submitting thread hashes itself, which slows producers down instead of letting the backlog grow.
+ */
+public class HashingService {
+
+    private static final HashingService instance = new HashingService(
+            Runtime.getRuntime().availableProcessors(), 1024);
+
+    private final ThreadPoolExecutor executor;
+
+    public HashingService(int threads, int queueDepth) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth), r -> {
+                    Thread t = new Thread(r, "password-hasher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public static HashingService getInstance() {
+        return instance;
+    }
+
+    public CompletableFuture<byte[]> hashAsync(String password, byte[] salt) {
+        return CompletableFuture.supplyAsync(() -> Util.generateHash(password, salt), executor);
+    }
+
+    public CompletableFuture<Boolean> matchesAsync(String password, byte[] salt, byte[] expectedHash) {
+        return hashAsync(password, salt).thenApply(hash -> Arrays.equals(expectedHash, hash));
+    }
+
+    // blocking versions for callers on a command thread
+    public byte[] hash(String password, byte[] salt) {
+        return join(hashAsync(password, salt));
+    }
+
+    public boolean matches(String password, byte[] salt, byte[] expectedHash) {
+        return join(matchesAsync(password, salt, expectedHash));
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
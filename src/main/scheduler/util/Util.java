@@ -22,17 +22,24 @@ public class Util {
         return salt;
     }
 
+    // SecretKeyFactory lookups are expensive and instances are not thread-safe, so each thread keeps its own
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException();
+        }
+    });
+
     public static byte[] generateHash(String password, byte[] salt) {
         // Specify the hash parameters
         KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
 
         // Generate the hash
-        SecretKeyFactory factory = null;
         byte[] hash = null;
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            hash = KEY_FACTORY.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException ex) {
             throw new IllegalStateException();
         }
         return hash;
@@ -0,0 +1,128 @@
+package scheduler.cache;
+
+import scheduler.model.Appointment;
+import scheduler.storage.AppointmentPage;
+import scheduler.storage.StorageEngine;
+import scheduler.storage.StorageEngines;
+
+import java.lang.reflect.Proxy;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Checks which show_appointments calls AppointmentViewCache serves from memory, against a storage engine that
+ * holds the appointments of one patient with few of them and one with too many to cache. Exits with 1 if a
+ * check fails.
+ */
+public class AppointmentViewCacheTest {
+
+    private static final AppointmentPage WHOLE = new AppointmentPage(0, 0, null, null);
+
+    private static final Map<String, Integer> calls = new TreeMap<>();
+    private static final List<Appointment> stored = new ArrayList<>();
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        for (int id = 1; id <= 5; id++) {
+            stored.add(new Appointment(id, Date.valueOf("2026-01-01"), "small", "cg", "pfizer"));
+        }
+        for (int id = 6; id <= 500; id++) {
+            stored.add(new Appointment(id, Date.valueOf("2026-01-01"), "big", "cg", "pfizer"));
+        }
+        StorageEngines.set(engine());
+        // room for a few dozen appointments
+        AppointmentViewCache.getInstance().configure(10_000, 60);
+
+        smallUserIsCached();
+        oversizeUserIsStreamed();
+        pagesAreStreamed();
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void smallUserIsCached() throws Exception {
+        AppointmentViewCache.getInstance().clear();
+        calls.clear();
+        for (int i = 0; i < 3; i++) {
+            check("small user sees all appointments", show("small", WHOLE).size() == 5);
+        }
+        check("small user is read once", calls("forEachAppointment") == 1);
+        check("getAppointments is not used", calls("getAppointments") == 0);
+    }
+
+    private static void oversizeUserIsStreamed() throws Exception {
+        AppointmentViewCache.getInstance().clear();
+        calls.clear();
+        for (int i = 0; i < 3; i++) {
+            List<Integer> ids = show("big", WHOLE);
+            check("oversize user sees all appointments", ids.size() == 495);
+            check("oversize user sees them sorted by id", ids.get(0) == 6 && ids.get(494) == 500);
+        }
+        check("oversize user is streamed every time", calls("forEachAppointment") == 3);
+        check("getAppointments is not used", calls("getAppointments") == 0);
+        // the oversize user did not push the small one out
+        show("small", WHOLE);
+        show("small", WHOLE);
+        check("small user is still cached next to the oversize one", calls("forEachAppointment") == 4);
+    }
+
+    private static void pagesAreStreamed() throws Exception {
+        AppointmentViewCache.getInstance().clear();
+        calls.clear();
+        show("small", WHOLE);
+        List<Integer> ids = show("small", new AppointmentPage(2, 2, null, null));
+        check("page starts after the given id", ids.size() == 2 && ids.get(0) == 3 && ids.get(1) == 4);
+        check("page is read from the storage engine", calls("forEachAppointment") == 2);
+        show("small", new AppointmentPage(0, 0, Date.valueOf("2026-01-01"), null));
+        check("date range is read from the storage engine", calls("forEachAppointment") == 3);
+    }
+
+    private static List<Integer> show(String username, AppointmentPage page) throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        AppointmentViewCache.getInstance().forEachAppointment(StorageEngine.Role.PATIENT, username, page,
+                appointment -> ids.add(appointment.getId()));
+        return ids;
+    }
+
+    private static int calls(String method) {
+        return calls.getOrDefault(method, 0);
+    }
+
+    // streams the stored appointments of a patient; every other method fails
+    @SuppressWarnings("unchecked")
+    private static StorageEngine engine() {
+        return (StorageEngine) Proxy.newProxyInstance(AppointmentViewCacheTest.class.getClassLoader(),
+                new Class<?>[]{StorageEngine.class}, (proxy, method, args) -> {
+                    calls.merge(method.getName(), 1, Integer::sum);
+                    if (!method.getName().equals("forEachAppointment")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    String username = (String) args[1];
+                    AppointmentPage page = (AppointmentPage) args[2];
+                    Consumer<Appointment> action = (Consumer<Appointment>) args[3];
+                    int left = page.getLimit() > 0 ? page.getLimit() : Integer.MAX_VALUE;
+                    for (Appointment appointment : stored) {
+                        if (left > 0 && appointment.getPatientUsername().equalsIgnoreCase(username)
+                                && appointment.getId() > page.getAfterId() && page.includes(appointment.getDate())) {
+                            action.accept(appointment);
+                            left--;
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    private static void check(String what, boolean ok) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package scheduler.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks IntObjectHashMap on the keys next to its internal encoding: -1 (stored aside because key + 1 is the
+ * empty marker), 0, and the extremes, whose key + 1 wraps around. Exits with 1 if a check fails.
+ */
+public class IntObjectHashMapTest {
+
+    private static final int[] EDGE_KEYS = {-1, 0, 1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        putThenGet();
+        putReplaces();
+        removeEach();
+        survivesResize();
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void putThenGet() {
+        for (int key : EDGE_KEYS) {
+            IntObjectHashMap<String> map = new IntObjectHashMap<>();
+            check("get(" + key + ") before put", map.get(key) == null);
+            check("put(" + key + ") into empty map", map.put(key, "v" + key) == null);
+            check("get(" + key + ") after put", ("v" + key).equals(map.get(key)));
+            check("size after put(" + key + ")", map.size() == 1);
+            for (int other : EDGE_KEYS) {
+                if (other != key) {
+                    check("get(" + other + ") after put(" + key + ")", map.get(other) == null);
+                }
+            }
+        }
+    }
+
+    private static void putReplaces() {
+        IntObjectHashMap<String> map = filled();
+        for (int key : EDGE_KEYS) {
+            check("put(" + key + ") returns the previous value", ("v" + key).equals(map.put(key, "w" + key)));
+            check("get(" + key + ") after replace", ("w" + key).equals(map.get(key)));
+        }
+        check("size after replacing", map.size() == EDGE_KEYS.length);
+    }
+
+    private static void removeEach() {
+        IntObjectHashMap<String> map = filled();
+        for (int i = 0; i < EDGE_KEYS.length; i++) {
+            int key = EDGE_KEYS[i];
+            check("remove(" + key + ") returns the value", ("v" + key).equals(map.remove(key)));
+            check("get(" + key + ") after remove", map.get(key) == null);
+            check("remove(" + key + ") twice", map.remove(key) == null);
+            check("size after remove(" + key + ")", map.size() == EDGE_KEYS.length - i - 1);
+            for (int j = i + 1; j < EDGE_KEYS.length; j++) {
+                check("get(" + EDGE_KEYS[j] + ") after remove(" + key + ")",
+                        ("v" + EDGE_KEYS[j]).equals(map.get(EDGE_KEYS[j])));
+            }
+        }
+    }
+
+    private static void survivesResize() {
+        IntObjectHashMap<String> map = filled();
+        for (int key = 2; key < 1000; key++) {
+            map.put(key, "v" + key);
+        }
+        for (int key : EDGE_KEYS) {
+            check("get(" + key + ") after resize", ("v" + key).equals(map.get(key)));
+        }
+        List<String> values = new ArrayList<>();
+        map.forEachValue(values::add);
+        check("forEachValue visits every value", values.size() == map.size() && values.contains("v-1"));
+    }
+
+    private static IntObjectHashMap<String> filled() {
+        IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        for (int key : EDGE_KEYS) {
+            map.put(key, "v" + key);
+        }
+        return map;
+    }
+
+    private static void check(String what, boolean ok) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED: " + what);
+        }
+    }
+}